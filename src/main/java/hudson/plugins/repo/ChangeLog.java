@@ -38,7 +38,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
@@ -58,6 +57,10 @@ public class ChangeLog extends ChangeLogParser {
 	private static Logger debug =
 		Logger.getLogger("hudson.plugins.repo.ChangeLog");
 
+	// How far to deepen a shallow project, one step after another, when its
+	// history doesn't reach the previous build's revision.
+	private static final int[] DEEPEN_STEPS = {50, 500};
+
 	// TODO: Really need to add some unit tests for this class. That might
 	// require creating git commits, which will be tricky. See the git plugin
 	// for some possibilities.
@@ -151,9 +154,22 @@ public class ChangeLog extends ChangeLogParser {
 			// is definitely preferable. Most of the code can probably be copied
 			// from Gerrit.  It might be tricky with master/slave setup.
 			commands.add(change.getRevision() + ".." + newRevision);
-			final OutputStream gitOutput = new ByteArrayOutputStream();
-			launcher.launch().stdout(gitOutput).pwd(gitdir).cmds(commands)
-					.join();
+			ByteArrayOutputStream gitOutput = new ByteArrayOutputStream();
+			int returnCode =
+					launcher.launch().stdout(gitOutput).pwd(gitdir)
+							.cmds(commands).join();
+			if (returnCode != 0
+					&& deepen(launcher, gitdir, change.getRevision())) {
+				// The project is a shallow clone which didn't reach back to
+				// the previous revision. Try again with the deeper history.
+				gitOutput = new ByteArrayOutputStream();
+				returnCode = launcher.launch().stdout(gitOutput).pwd(gitdir)
+						.cmds(commands).join();
+			}
+			if (returnCode != 0) {
+				debug.log(Level.WARNING, "git log failed in " + change.getPath()
+						+ " (exit code " + returnCode + ")");
+			}
 			final String[] changelogs =
 					gitOutput.toString().split("zzREPOzz");
 			for (final String changelog : changelogs) {
@@ -208,6 +224,71 @@ public class ChangeLog extends ChangeLogParser {
 		return logs;
 	}
 
+	/**
+	 * Deepens the history of a shallow project until it contains a revision.
+	 * The history is deepened a step at a time, and the project is unshallowed
+	 * as a last resort. Nothing is fetched if the project isn't a shallow
+	 * clone, as its history then holds every revision it can reach.
+	 *
+	 * @param launcher
+	 *            The launcher used to run command-line programs
+	 * @param gitdir
+	 *            The working directory of the project
+	 * @param revision
+	 *            The revision which must be present
+	 * @return true if the revision is present afterwards.
+	 */
+	static boolean deepen(final Launcher launcher,
+			final FilePath gitdir, final String revision)
+			throws IOException, InterruptedException {
+		if (hasCommit(launcher, gitdir, revision)
+				|| !isShallow(launcher, gitdir)) {
+			// The log failed for another reason, deepening won't help.
+			return false;
+		}
+		final ByteArrayOutputStream remotes = new ByteArrayOutputStream();
+		launcher.launch().stdout(remotes).pwd(gitdir).cmds("git", "remote")
+				.join();
+		final String[] names = remotes.toString().trim().split("\n");
+		if (names[0].length() == 0) {
+			return false;
+		}
+		for (final int depth : DEEPEN_STEPS) {
+			debug.log(Level.FINE, "Deepening " + gitdir + " by " + depth);
+			launcher.launch().pwd(gitdir).cmds("git", "fetch",
+					"--deepen=" + depth, names[0]).join();
+			if (hasCommit(launcher, gitdir, revision)) {
+				return true;
+			}
+		}
+		debug.log(Level.FINE, "Unshallowing " + gitdir);
+		launcher.launch().pwd(gitdir).cmds("git", "fetch", "--unshallow",
+				names[0]).join();
+		return hasCommit(launcher, gitdir, revision);
+	}
+
+	/**
+	 * Tells whether a project is a shallow clone, by the shallow file git
+	 * keeps in its git directory.
+	 */
+	private static boolean isShallow(final Launcher launcher,
+			final FilePath gitdir) throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		if (launcher.launch().stdout(output).pwd(gitdir)
+				.cmds("git", "rev-parse", "--git-dir").join() != 0) {
+			return false;
+		}
+		return new FilePath(gitdir, output.toString().trim())
+				.child("shallow").exists();
+	}
+
+	private static boolean hasCommit(final Launcher launcher,
+			final FilePath gitdir, final String revision)
+			throws IOException, InterruptedException {
+		return launcher.launch().pwd(gitdir).cmds("git", "cat-file", "-e",
+				revision + "^{commit}").join() == 0;
+	}
+
 	/**
 	 * Generate a change log file containing the differences between one build
 	 * and the next and save the result as XML in a specified file. The function
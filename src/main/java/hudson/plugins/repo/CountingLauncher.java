@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Launcher which counts the processes started through it during a
+ * checkout. Processes which repo forall starts in each project are not seen
+ * by the launcher, so callers report them separately with
+ * {@link #addPerProject(int)}. The processes are watched by a
+ * {@link Watchdog}, if one is given.
+ */
+class CountingLauncher extends Launcher {
+
+	private final Launcher outer;
+	private final AtomicInteger launched = new AtomicInteger();
+	private final AtomicInteger perProject = new AtomicInteger();
+	private final Watchdog watchdog;
+
+	/**
+	 * Wraps a launcher.
+	 *
+	 * @param outer
+	 *            The launcher which actually starts the processes
+	 * @param watchdog
+	 *            The watchdog of the processes, or null
+	 */
+	CountingLauncher(final Launcher outer, final Watchdog watchdog) {
+		super(outer);
+		this.outer = outer;
+		this.watchdog = watchdog;
+	}
+
+	@Override
+	public Proc launch(final ProcStarter starter) throws IOException {
+		launched.incrementAndGet();
+		if (watchdog != null) {
+			return watchdog.launch(outer, starter);
+		}
+		return outer.launch(starter);
+	}
+
+	/**
+	 * Sets the checkout phase of the processes started from now on, which
+	 * decides their timeout.
+	 */
+	void setPhase(final Watchdog.Phase phase) {
+		if (watchdog != null) {
+			watchdog.setPhase(phase);
+		}
+	}
+
+	@Override
+	public Channel launchChannel(final String[] cmd, final OutputStream out,
+			final FilePath workDir, final Map<String, String> envVars)
+			throws IOException, InterruptedException {
+		launched.incrementAndGet();
+		return outer.launchChannel(cmd, out, workDir, envVars);
+	}
+
+	@Override
+	public boolean isUnix() {
+		return outer.isUnix();
+	}
+
+	@Override
+	public void kill(final Map<String, String> modelEnvVars)
+			throws IOException, InterruptedException {
+		outer.kill(modelEnvVars);
+	}
+
+	/**
+	 * Records processes started in every project by a command which the
+	 * launcher only saw once, such as repo forall.
+	 *
+	 * @param count
+	 *            The number of processes started in each project
+	 */
+	void addPerProject(final int count) {
+		perProject.addAndGet(count);
+	}
+
+	/**
+	 * Returns the number of processes started directly through this launcher.
+	 */
+	int getLaunched() {
+		return launched.get();
+	}
+
+	/**
+	 * Returns the estimated total number of processes started, counting
+	 * per-project processes once for each of the given number of projects.
+	 *
+	 * @param projects
+	 *            The number of projects in the repo client
+	 */
+	int getTotal(final int projects) {
+		return launched.get() + perProject.get() * projects;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a shell command in each of a set of repo projects, several projects at
+ * a time. This is the parallel counterpart of "repo forall -c", and sets the
+ * same REPO_* variables for the command. Unlike repo forall, the exit code of
+ * every project is reported, and the output of each project is kept together
+ * in the log instead of being interleaved.
+ */
+class ForallRunner {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.ForallRunner");
+
+	private final Launcher launcher;
+	private final FilePath workspace;
+	private final PrintStream logger;
+	private final int threads;
+
+	/**
+	 * Creates a runner for the projects of a repo client.
+	 *
+	 * @param launcher
+	 *            The launcher used to run command-line programs
+	 * @param workspace
+	 *            The root of the repo client. Project paths are resolved
+	 *            against this directory.
+	 * @param logger
+	 *            The build log
+	 * @param threads
+	 *            The maximum number of projects to run at the same time. Values
+	 *            less than 1 are treated as 1.
+	 */
+	ForallRunner(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final int threads) {
+		this.launcher = launcher;
+		this.workspace = workspace;
+		this.logger = logger;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Runs a command with "sh -c" in every one of the given projects.
+	 *
+	 * @param projects
+	 *            The variables of the projects, as set by repo forall,
+	 *            keyed by their client-side paths. See
+	 *            {@link ManifestParser#getForallEnvironments}.
+	 * @param command
+	 *            The shell command to run in each project
+	 * @return the paths of the projects in which the command failed. The list
+	 *         is empty if the command succeeded everywhere.
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting on the
+	 *             commands. Commands still waiting to run are cancelled.
+	 */
+	List<String> run(final Map<String, Map<String, String>> projects,
+			final String command) throws InterruptedException {
+		final List<String> paths = new ArrayList<String>(projects.keySet());
+		final List<String> failed = new ArrayList<String>();
+		if (paths.isEmpty()) {
+			return failed;
+		}
+		logger.println("Running \"" + command + "\" in " + paths.size()
+				+ " projects, " + threads + " at a time");
+		final ExecutorService executor =
+				Executors.newFixedThreadPool(Math.min(threads, paths.size()));
+		try {
+			final List<Future<Integer>> results =
+					new ArrayList<Future<Integer>>(paths.size());
+			for (final String path : paths) {
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return runOne(path, projects.get(path), command);
+					}
+				}));
+			}
+			for (int i = 0; i < paths.size(); i++) {
+				int returnCode;
+				try {
+					returnCode = results.get(i).get().intValue();
+				} catch (final ExecutionException e) {
+					debug.log(Level.WARNING, "Failed to run " + command
+							+ " in " + paths.get(i), e.getCause());
+					synchronized (logger) {
+						logger.println(paths.get(i) + ": " + e.getCause());
+					}
+					returnCode = -1;
+				}
+				if (returnCode != 0) {
+					failed.add(paths.get(i));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.println("\"" + command + "\" succeeded in "
+				+ (paths.size() - failed.size()) + " projects, failed in "
+				+ failed.size());
+		return failed;
+	}
+
+	private int runOne(final String path,
+			final Map<String, String> environment, final String command)
+			throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).pwd(workspace.child(path))
+						.envs(environment).cmds("sh", "-c", command).join();
+		synchronized (logger) {
+			logger.println("project " + path + "/ (exit code " + returnCode
+					+ ")");
+			output.writeTo(logger);
+		}
+		return returnCode;
+	}
+}
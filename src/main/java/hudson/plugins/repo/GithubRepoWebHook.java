@@ -123,6 +123,12 @@ public class GithubRepoWebHook implements UnprotectedRootAction {
                         if (scm.getManifestBaseBranch().equals(base_branch)) {
                          	trigger.onPost(pusherName, o);
                         	LOGGER.info("Poked "+job.getFullDisplayName());
+                        	if (scm.isManagedMirror()) {
+                        		MirrorRefresher.refreshLater(scm.getManifestRepositoryUrl());
+                        	}
+                        	if (scm.isPrefetch()) {
+                        		SyncPrefetcher.prefetchLater(job);
+                        	}
                         }
                         else {
                         	LOGGER.info("not Poked "+job.getFullDisplayName() + " ManifestBaseBranch=" + scm.getManifestBaseBranch() + " but pull_request basebranch="+base_branch);
@@ -172,6 +178,13 @@ public class GithubRepoWebHook implements UnprotectedRootAction {
                             }
                         }, 600*1000);
                     	LOGGER.info("Poked "+job.getFullDisplayName());
+                    	if (scm.isManagedMirror()) {
+                    		// Warm the mirror while the push settles.
+                    		MirrorRefresher.refreshLater(scm.getManifestRepositoryUrl());
+                    	}
+                    	if (scm.isPrefetch()) {
+                    		SyncPrefetcher.prefetchLater(job);
+                    	}
                     }
                     else {
                     	LOGGER.info("not Poked "+job.getFullDisplayName() + " monitorRef=" + monitorRef + " but ref ="+ref);
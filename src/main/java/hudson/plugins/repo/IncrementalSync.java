@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which projects of a repo client need to be synced. A full sync is
+ * run the first time, whenever the manifest or local manifest changes, and
+ * after a configurable interval. In between, the revision of every project is
+ * resolved and only the projects whose revision differs from the previous
+ * build's {@link RevisionState}, or from the revision checked out in the
+ * workspace, are synced. The second check matters when the previous build ran
+ * in another workspace. Revisions pinned to a commit in the manifest are
+ * compared as they are; only the branches and tags are resolved with git
+ * ls-remote, as git can't query several repositories at once.
+ */
+class IncrementalSync {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.IncrementalSync");
+
+	/**
+	 * The file in .repo which records the last full sync. It holds the
+	 * manifest revision, a digest of the local manifest and the time of the
+	 * sync, one per line.
+	 */
+	static final String MARKER = "jenkins-full-sync";
+
+	// Prints "<path> <revision> <local sha>" for every project, without
+	// going to the network.
+	private static final String LOCAL_HEADS =
+			"echo \"$REPO_PATH $REPO_RREV $(git rev-parse HEAD)\"";
+
+	// Prints "<path> <sha> <ref>" for the remote ref of every project, and
+	// for the commit an annotated tag points to, as "<ref>^{}".
+	private static final String LS_REMOTE =
+			"case \"$REPO_RREV\" in refs/*) ref=\"$REPO_RREV\";;"
+			+ " *) ref=\"refs/heads/$REPO_RREV\";; esac;"
+			+ " git ls-remote \"$REPO_REMOTE\" \"$ref\" \"$ref^{}\""
+			+ " | sed \"s|^|$REPO_PATH |\"";
+
+	private static final Pattern COMMIT = Pattern.compile("[0-9a-f]{40}");
+
+	private final String executable;
+	private final Launcher launcher;
+	private final FilePath workspace;
+	private final PrintStream logger;
+	private String fingerprint;
+
+	/**
+	 * Creates an incremental sync helper for a repo client.
+	 *
+	 * @param executable
+	 *            The repo executable
+	 * @param launcher
+	 *            The launcher used to run command-line programs
+	 * @param workspace
+	 *            The root of the repo client
+	 * @param logger
+	 *            The build log
+	 */
+	IncrementalSync(final String executable, final Launcher launcher,
+			final FilePath workspace, final PrintStream logger) {
+		this.executable = executable;
+		this.launcher = launcher;
+		this.workspace = workspace;
+		this.logger = logger;
+	}
+
+	/**
+	 * Returns true if a full sync must be run, either because none was
+	 * recorded, the manifest or local manifest changed since the last one, or
+	 * the last one is older than the given interval. Must be called after
+	 * repo init.
+	 *
+	 * @param localManifest
+	 *            The contents of the local manifest, or null
+	 * @param intervalMillis
+	 *            The maximum time between full syncs
+	 */
+	boolean isFullSyncDue(final String localManifest,
+			final long intervalMillis)
+			throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).stderr(logger)
+						.pwd(workspace.child(".repo").child("manifests"))
+						.cmds("git", "rev-parse", "HEAD").join();
+		if (returnCode != 0) {
+			return true;
+		}
+		fingerprint = output.toString().trim() + "\n"
+				+ Util.getDigestOf(Util.fixNull(localManifest));
+
+		final FilePath marker = workspace.child(".repo").child(MARKER);
+		if (!marker.exists()) {
+			logger.println("No full sync recorded, running a full sync");
+			return true;
+		}
+		final String[] recorded = marker.readToString().split("\n");
+		if (recorded.length < 3
+				|| !fingerprint.equals(recorded[0] + "\n" + recorded[1])) {
+			logger.println("The manifest changed, running a full sync");
+			return true;
+		}
+		long last;
+		try {
+			last = Long.parseLong(recorded[2].trim());
+		} catch (final NumberFormatException e) {
+			return true;
+		}
+		if (System.currentTimeMillis() - last > intervalMillis) {
+			logger.println("Last full sync was "
+					+ Util.getTimeSpanString(System.currentTimeMillis() - last)
+					+ " ago, running a full sync");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a successful full sync, so that the following builds can sync
+	 * incrementally.
+	 */
+	void recordFullSync() throws IOException, InterruptedException {
+		if (fingerprint == null) {
+			return;
+		}
+		workspace.child(".repo").child(MARKER).write(
+				fingerprint + "\n" + System.currentTimeMillis() + "\n", null);
+	}
+
+	/**
+	 * Forgets the last full sync, so that the next build runs a full sync.
+	 */
+	void clearFullSync() throws IOException, InterruptedException {
+		workspace.child(".repo").child(MARKER).delete();
+	}
+
+	/**
+	 * Resolves the revision of every project and returns the paths of the
+	 * projects whose revision differs from the previous state or from the
+	 * local HEAD. Only the projects following a branch or a tag are looked
+	 * up on their remote. Projects whose revision could not be resolved are
+	 * included.
+	 *
+	 * @param previousState
+	 *            The repository state of the previous build
+	 * @param jobs
+	 *            The number of projects to query at the same time. If this is
+	 *            0 or negative, repo's default is used.
+	 * @param projects
+	 *            The projects to query, or null for all
+	 * @return the paths to sync, or null if the revisions could not be
+	 *         resolved and a full sync should be run instead.
+	 */
+	List<String> getChangedProjects(final RevisionState previousState,
+			final int jobs, final List<String> projects)
+			throws IOException, InterruptedException {
+		final String local = forall(projects, jobs, LOCAL_HEADS);
+		if (local == null) {
+			return null;
+		}
+		// The revision and the local HEAD of each project
+		final Map<String, String[]> heads =
+				new LinkedHashMap<String, String[]>();
+		final List<String> following = new ArrayList<String>();
+		for (final String line : local.split("\n")) {
+			final String[] fields = line.trim().split(" ");
+			if (fields.length != 3) {
+				continue;
+			}
+			heads.put(fields[0], new String[] {fields[1], fields[2]});
+			if (!COMMIT.matcher(fields[1]).matches()) {
+				following.add(fields[0]);
+			}
+		}
+		Map<String, String> remote = new LinkedHashMap<String, String>();
+		if (!following.isEmpty()) {
+			logger.println("Resolving the remote heads of "
+					+ following.size() + " projects");
+			final String output = forall(following, jobs, LS_REMOTE);
+			if (output == null) {
+				return null;
+			}
+			remote = parseRemoteHeads(output);
+		}
+
+		final List<String> changed = new ArrayList<String>();
+		for (final Map.Entry<String, String[]> head : heads.entrySet()) {
+			final String path = head.getKey();
+			final String pinned = head.getValue()[0];
+			final String revision = COMMIT.matcher(pinned).matches()
+					? pinned : remote.get(path);
+			if (revision == null
+					|| !revision.equals(previousState.getRevision(path))
+					|| !revision.equals(head.getValue()[1])) {
+				debug.log(Level.FINE, "Changed: " + path);
+				changed.add(path);
+			}
+		}
+		logger.println(changed.size() + " of " + heads.size()
+				+ " projects changed since the last build");
+		return changed;
+	}
+
+	/**
+	 * Returns the commits of the remote refs printed by git ls-remote, one
+	 * line "path sha ref" per ref, keyed by project path. The commit an
+	 * annotated tag points to is preferred over the tag object itself.
+	 */
+	static Map<String, String> parseRemoteHeads(final String output) {
+		final Map<String, String> heads = new LinkedHashMap<String, String>();
+		for (final String line : output.split("\n")) {
+			final String[] fields = line.trim().split("\\s+");
+			if (fields.length != 3) {
+				continue;
+			}
+			if (fields[2].endsWith("^{}") || !heads.containsKey(fields[0])) {
+				heads.put(fields[0], fields[1]);
+			}
+		}
+		return heads;
+	}
+
+	// Runs a command in the given projects, or all if null, and returns its
+	// output, or null if it failed.
+	private String forall(final List<String> projects, final int jobs,
+			final String command) throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(5);
+		commands.add(executable);
+		commands.add("forall");
+		if (projects != null) {
+			commands.addAll(projects);
+		}
+		if (jobs > 0) {
+			commands.add("--jobs=" + jobs);
+		}
+		commands.add("-c");
+		commands.add(command);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).stderr(logger).pwd(workspace)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			logger.println("Unable to resolve the revisions (exit code "
+					+ returnCode + "), running a full sync");
+			return null;
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,524 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A repo mirror ("repo init --mirror") of one manifest, kept by the plugin on
+ * one node. Builds on the node pass the mirror to repo init as --reference,
+ * so they fetch most objects from local disk. Mirrors are registered with
+ * {@link RepoScm.DescriptorImpl} and refreshed by {@link MirrorRefresher}.
+ */
+public class ManagedMirror {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.ManagedMirror");
+
+	/**
+	 * The directory, relative to the root of the node, under which managed
+	 * mirrors are created.
+	 */
+	static final String MIRRORS_DIR = "repo-mirrors";
+
+	/**
+	 * A mirror synced less than this long ago is used as is by
+	 * {@link #refreshShared}.
+	 */
+	static final long SHARED_MAX_AGE = 30 * 1000L;
+
+	/**
+	 * The file in the mirror's .repo listing the workspaces which were
+	 * initialized with the mirror as --reference, one path per line.
+	 */
+	static final String REFERRERS = "jenkins-referrers";
+
+	// One lock per mirror directory, so that a mirror is never created or
+	// synced twice at the same time.
+	private static final ConcurrentMap<String, Object> LOCKS =
+			new ConcurrentHashMap<String, Object>();
+	// The syncs started by refreshShared, by mirror directory, which
+	// concurrent builds wait for instead of starting their own.
+	private static final Map<String, FutureTask<Boolean>> SHARED =
+			new HashMap<String, FutureTask<Boolean>>();
+
+	private final String node;
+	private final String manifestRepositoryUrl;
+	private final String manifestBranch;
+	private final String manifestFile;
+	private volatile long lastRefresh;
+	private volatile long lastGc;
+
+	/**
+	 * Creates a mirror description. Nothing is created on disk.
+	 *
+	 * @param node
+	 *            The name of the node holding the mirror, empty for the master
+	 * @param manifestRepositoryUrl
+	 *            The URL of the manifest repository
+	 * @param manifestBranch
+	 *            The branch of the manifest repository, or null
+	 * @param manifestFile
+	 *            The manifest file, or null
+	 */
+	ManagedMirror(final String node, final String manifestRepositoryUrl,
+			final String manifestBranch, final String manifestFile) {
+		this.node = Util.fixNull(node);
+		this.manifestRepositoryUrl = manifestRepositoryUrl;
+		this.manifestBranch = manifestBranch;
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * Returns the name of the node holding the mirror, empty for the master.
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the URL of the mirrored manifest repository.
+	 */
+	public String getManifestRepositoryUrl() {
+		return manifestRepositoryUrl;
+	}
+
+	/**
+	 * Returns the time the mirror was last synced successfully, in
+	 * milliseconds, or 0 if it never was.
+	 */
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	/**
+	 * Returns the time the mirror was last garbage collected, in
+	 * milliseconds, or 0 if it never was.
+	 */
+	public long getLastGc() {
+		return lastGc;
+	}
+
+	/**
+	 * Returns true if this describes the mirror of the given manifest on the
+	 * given node.
+	 */
+	boolean matches(final String nodeName, final String url,
+			final String branch, final String file) {
+		return node.equals(Util.fixNull(nodeName))
+				&& manifestRepositoryUrl.equals(url)
+				&& Util.fixNull(manifestBranch).equals(Util.fixNull(branch))
+				&& Util.fixNull(manifestFile).equals(Util.fixNull(file));
+	}
+
+	/**
+	 * Returns the node holding the mirror, or null if it no longer exists.
+	 */
+	Node getNodeObject() {
+		if (node.length() == 0) {
+			return Hudson.getInstance();
+		}
+		return Hudson.getInstance().getNode(node);
+	}
+
+	/**
+	 * Returns the directory of the mirror on its node, or null if the node is
+	 * offline.
+	 *
+	 * @param nodeObject
+	 *            The node holding the mirror
+	 */
+	FilePath getDirectory(final Node nodeObject) {
+		final FilePath root = nodeObject.getRootPath();
+		if (root == null) {
+			return null;
+		}
+		return root.child(MIRRORS_DIR).child(
+				Util.getDigestOf(manifestRepositoryUrl + "\n"
+						+ Util.fixNull(manifestBranch) + "\n"
+						+ Util.fixNull(manifestFile)));
+	}
+
+	/**
+	 * Returns true if the mirror has been created.
+	 *
+	 * @param directory
+	 *            The directory of the mirror
+	 */
+	static boolean exists(final FilePath directory)
+			throws IOException, InterruptedException {
+		return directory.child(".repo").child("manifests").isDirectory();
+	}
+
+	/**
+	 * Creates the mirror if needed and syncs it. Only one update of a given
+	 * mirror runs at a time, later callers wait for the running one.
+	 *
+	 * @param directory
+	 *            The directory of the mirror
+	 * @param launcher
+	 *            A launcher for the node holding the mirror
+	 * @param executable
+	 *            The repo executable
+	 * @param jobs
+	 *            The number of jobs to pass to repo sync, if positive
+	 * @param logger
+	 *            Where to log the output of repo
+	 * @return true if the mirror was synced successfully.
+	 */
+	boolean update(final FilePath directory, final Launcher launcher,
+			final String executable, final int jobs, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final Object lock = getLock(node + ":" + directory.getRemote());
+		synchronized (lock) {
+			final long start = System.currentTimeMillis();
+			if (!exists(directory)) {
+				logger.println("Creating repo mirror of "
+						+ manifestRepositoryUrl + " in " + directory);
+				directory.mkdirs();
+				final List<String> commands = new ArrayList<String>(8);
+				commands.add(executable);
+				commands.add("init");
+				commands.add("--mirror");
+				commands.add("-u");
+				commands.add(manifestRepositoryUrl);
+				if (manifestBranch != null) {
+					commands.add("-b");
+					commands.add(manifestBranch);
+				}
+				if (manifestFile != null) {
+					commands.add("-m");
+					commands.add(manifestFile);
+				}
+				final int returnCode =
+						launcher.launch().stdout(logger).pwd(directory)
+								.cmds(commands).join();
+				if (returnCode != 0) {
+					logger.println("Unable to create the repo mirror");
+					directory.deleteRecursive();
+					return false;
+				}
+			}
+			final List<String> commands = new ArrayList<String>(3);
+			commands.add(executable);
+			commands.add("sync");
+			if (jobs > 0) {
+				commands.add("--jobs=" + jobs);
+			}
+			final int returnCode =
+					launcher.launch().stdout(logger).pwd(directory)
+							.cmds(commands).join();
+			if (returnCode != 0) {
+				logger.println("Unable to sync the repo mirror (exit code "
+						+ returnCode + ")");
+				return false;
+			}
+			lastRefresh = System.currentTimeMillis();
+			debug.log(Level.INFO, "Refreshed mirror " + directory + " in "
+					+ Util.getTimeSpanString(lastRefresh - start));
+			return true;
+		}
+	}
+
+	/**
+	 * Syncs the mirror for a build, sharing the sync with the builds which
+	 * need it at the same time. A build finding a sync of the mirror started
+	 * by another build waits for it and uses its result, and a mirror synced
+	 * less than {@link #SHARED_MAX_AGE} ago is used as is. So a burst of
+	 * builds of the same manifest on a node runs one network sync.
+	 *
+	 * @param directory
+	 *            The directory of the mirror
+	 * @param launcher
+	 *            A launcher for the node holding the mirror
+	 * @param executable
+	 *            The repo executable
+	 * @param jobs
+	 *            The number of jobs to pass to repo sync, if positive
+	 * @param logger
+	 *            Where to log the output of repo
+	 * @return true if the mirror is up to date.
+	 */
+	boolean refreshShared(final FilePath directory, final Launcher launcher,
+			final String executable, final int jobs, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final String key = node + ":" + directory.getRemote();
+		FutureTask<Boolean> sync;
+		boolean started = false;
+		synchronized (SHARED) {
+			sync = SHARED.get(key);
+			if (sync == null) {
+				final long age = System.currentTimeMillis() - lastRefresh;
+				if (age < SHARED_MAX_AGE) {
+					logger.println("The repo mirror was synced "
+							+ Util.getTimeSpanString(age) + " ago");
+					return true;
+				}
+				sync = new FutureTask<Boolean>(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return update(directory, launcher, executable, jobs,
+								logger);
+					}
+				});
+				SHARED.put(key, sync);
+				started = true;
+			}
+		}
+		if (started) {
+			try {
+				sync.run();
+			} finally {
+				synchronized (SHARED) {
+					SHARED.remove(key);
+				}
+			}
+		} else {
+			logger.println("Waiting for the sync of the repo mirror started"
+					+ " by another build");
+		}
+		try {
+			return sync.get();
+		} catch (final ExecutionException e) {
+			if (started && e.getCause() instanceof InterruptedException) {
+				throw (InterruptedException) e.getCause();
+			}
+			// The build which started the sync failed or was aborted.
+			logger.println("The sync of the repo mirror failed: "
+					+ e.getCause());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the environment which makes git fetch the projects of a
+	 * manifest from the mirror instead of their remotes, or null if it has
+	 * no remote. Each remote's fetch URL is redirected to the mirror with a
+	 * url.insteadOf setting passed through GIT_CONFIG_COUNT, which older
+	 * versions of git ignore, fetching from the remotes as before.
+	 *
+	 * @param manifest
+	 *            The manifest of the repo client, as output by repo manifest,
+	 *            read as a stream
+	 * @param manifestUrl
+	 *            The URL of the manifest repository, against which relative
+	 *            fetch URLs are resolved
+	 * @param mirror
+	 *            The path of the mirror
+	 * @return "NAME=value" strings, as accepted by Launcher.ProcStarter.
+	 */
+	static String[] getFetchRedirect(final Reader manifest,
+			final String manifestUrl, final String mirror)
+			throws IOException {
+		final List<String> fetchUrls = new ArrayList<String>();
+		for (final String url : ManifestParser.getFetchUrls(manifest)) {
+			final String fetch = resolve(manifestUrl, url);
+			if (fetch != null && !fetchUrls.contains(fetch)) {
+				fetchUrls.add(fetch);
+			}
+		}
+		if (fetchUrls.isEmpty()) {
+			return null;
+		}
+		final List<String> envs = new ArrayList<String>();
+		envs.add("GIT_CONFIG_COUNT=" + fetchUrls.size());
+		for (int i = 0; i < fetchUrls.size(); i++) {
+			envs.add("GIT_CONFIG_KEY_" + i + "=url." + mirror
+					+ "/.insteadOf");
+			envs.add("GIT_CONFIG_VALUE_" + i + "=" + fetchUrls.get(i));
+		}
+		return envs.toArray(new String[envs.size()]);
+	}
+
+	/**
+	 * Resolves a remote's fetch URL the way repo does, and returns it with a
+	 * trailing slash, or null if it can't be resolved.
+	 */
+	static String resolve(final String manifestUrl,
+			final String fetch) {
+		if (fetch == null) {
+			return null;
+		}
+		String url = fetch;
+		if (!fetch.contains("://") && fetch.startsWith(".")) {
+			try {
+				url = new URI(manifestUrl).resolve(fetch).toString();
+			} catch (final Exception e) {
+				return null;
+			}
+		}
+		return url.endsWith("/") ? url : url + "/";
+	}
+
+	/**
+	 * Records that a workspace uses the mirror as its object pool. Git finds
+	 * the mirror's objects through the alternates which repo init
+	 * --reference sets up, so the mirror must keep them while the workspace
+	 * exists, see {@link #gc}. Waits for a running update or garbage
+	 * collection of the mirror.
+	 *
+	 * @param directory
+	 *            The directory of the mirror
+	 * @param workspace
+	 *            The root of the repo client
+	 */
+	void addReferrer(final FilePath directory, final FilePath workspace)
+			throws IOException, InterruptedException {
+		synchronized (getLock(node + ":" + directory.getRemote())) {
+			final FilePath file = directory.child(".repo").child(REFERRERS);
+			final List<String> referrers = readReferrers(file);
+			if (!referrers.contains(workspace.getRemote())) {
+				referrers.add(workspace.getRemote());
+				file.write(Util.join(referrers, "\n") + "\n", null);
+			}
+		}
+	}
+
+	/**
+	 * Garbage collects every git repository of the mirror. Workspaces
+	 * recorded by {@link #addReferrer} which still exist and still reference
+	 * the mirror are "live". While there are live workspaces, unreachable
+	 * objects are never pruned, as a workspace may still need them, for
+	 * example after a force push. Otherwise git's default expiry applies.
+	 * Workspaces which no longer reference the mirror are forgotten.
+	 *
+	 * @param directory
+	 *            The directory of the mirror
+	 * @param launcher
+	 *            A launcher for the node holding the mirror
+	 * @param logger
+	 *            Where to log the output of git
+	 * @return true if every repository was collected.
+	 */
+	boolean gc(final FilePath directory, final Launcher launcher,
+			final PrintStream logger)
+			throws IOException, InterruptedException {
+		synchronized (getLock(node + ":" + directory.getRemote())) {
+			if (!exists(directory)) {
+				return false;
+			}
+			final FilePath file = directory.child(".repo").child(REFERRERS);
+			final List<String> live = new ArrayList<String>();
+			for (final String referrer : readReferrers(file)) {
+				if (isReferrer(directory, new FilePath(directory, referrer))) {
+					live.add(referrer);
+				}
+			}
+			file.write(live.isEmpty() ? "" : Util.join(live, "\n") + "\n",
+					null);
+
+			final String prune = live.isEmpty() ? "--prune" : "--prune=never";
+			logger.println("Collecting garbage in " + directory + " ("
+					+ live.size() + " workspaces use it, " + prune + ")");
+			final ByteArrayOutputStream found = new ByteArrayOutputStream();
+			final int findCode = launcher.launch().stdout(found)
+					.pwd(directory).cmds("find", ".", "-name", "*.git",
+							"-type", "d", "-prune").join();
+			if (findCode != 0) {
+				logger.println("Unable to list the repositories of the mirror"
+						+ " (exit code " + findCode + ")");
+				return false;
+			}
+			// Each repository is collected on its own, so that a failure in
+			// one of them is seen.
+			int failed = 0;
+			for (final String line : found.toString().split("\n")) {
+				final String gitDir = line.trim();
+				if (gitDir.length() == 0) {
+					continue;
+				}
+				final int returnCode = launcher.launch().stdout(logger)
+						.pwd(directory).cmds("git", "--git-dir=" + gitDir,
+								"gc", "--quiet", prune).join();
+				if (returnCode != 0) {
+					logger.println("git gc failed in " + gitDir
+							+ " (exit code " + returnCode + ")");
+					failed++;
+				}
+			}
+			// A failing repository is tried again the next day, not at
+			// every refresh.
+			lastGc = System.currentTimeMillis();
+			if (failed > 0) {
+				logger.println("git gc failed in " + failed
+						+ " repositories of the mirror");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns true if a workspace still exists and was initialized with the
+	 * mirror as its reference, which repo records in the configuration of
+	 * its manifest repository.
+	 */
+	private static boolean isReferrer(final FilePath directory,
+			final FilePath workspace)
+			throws IOException, InterruptedException {
+		final FilePath config =
+				workspace.child(".repo").child("manifests.git").child("config");
+		return config.exists()
+				&& config.readToString().contains(directory.getRemote());
+	}
+
+	private static List<String> readReferrers(final FilePath file)
+			throws IOException, InterruptedException {
+		final List<String> referrers = new ArrayList<String>();
+		if (file.exists()) {
+			for (final String line : file.readToString().split("\n")) {
+				if (line.trim().length() > 0) {
+					referrers.add(line.trim());
+				}
+			}
+		}
+		return referrers;
+	}
+
+	private static Object getLock(final String key) {
+		final Object lock = new Object();
+		final Object existing = LOCKS.putIfAbsent(key, lock);
+		return existing != null ? existing : lock;
+	}
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the projects of a repo manifest with a streaming parser, keeping
+ * only the path, name and revision of each project. A project without a
+ * revision gets the revision of its remote, or else the default revision.
+ * Nested projects, remove-project and extend-project are applied the way
+ * repo applies them. Included manifests are not read: the manifests read
+ * here are the output of "repo manifest", in which repo already replaced
+ * the includes with the projects they declare.
+ */
+final class ManifestParser {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.ManifestParser");
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	/**
+	 * A project as declared, before its revision is resolved.
+	 */
+	private static final class Project {
+		private final String name;
+		private final String path;
+		private String revision;
+		private final String remote;
+
+		private Project(final String name, final String path,
+				final String revision, final String remote) {
+			this.name = name;
+			this.path = path;
+			this.revision = revision;
+			this.remote = remote;
+		}
+	}
+
+	private final Map<String, String> remoteRevisions =
+			new HashMap<String, String>();
+	private final Map<String, String> remoteFetches =
+			new LinkedHashMap<String, String>();
+	private final List<Project> projects = new ArrayList<Project>();
+	private String defaultRemote;
+	private String defaultRevision;
+	private int syncJobs;
+
+	private ManifestParser() {
+	}
+
+	/**
+	 * Returns the projects of a manifest, in the order they are declared.
+	 * The revision of a project is null if neither the project, its remote
+	 * nor the default has one.
+	 *
+	 * @param manifest
+	 *            The manifest XML
+	 * @throws IOException
+	 *             if the manifest can't be read or isn't a repo manifest.
+	 */
+	static List<ProjectState> parse(final Reader manifest)
+			throws IOException {
+		final ManifestParser parser = new ManifestParser();
+		parser.read(manifest);
+		final List<ProjectState> states =
+				new ArrayList<ProjectState>(parser.projects.size());
+		for (final Project project : parser.projects) {
+			states.add(new ProjectState(project.path, project.name,
+					parser.getRevision(project)));
+		}
+		return states;
+	}
+
+	/**
+	 * Returns the fetch URLs of the remotes of a manifest, as written in the
+	 * manifest, in the order the remotes are declared.
+	 *
+	 * @param manifest
+	 *            The manifest XML
+	 * @throws IOException
+	 *             if the manifest can't be read or isn't a repo manifest.
+	 */
+	static List<String> getFetchUrls(final Reader manifest)
+			throws IOException {
+		return getFetches(manifest).urls;
+	}
+
+	/**
+	 * What a sync of a manifest fetches from.
+	 */
+	static final class Fetches {
+		/**
+		 * The fetch URLs of the remotes, see {@link #getFetchUrls}.
+		 */
+		final List<String> urls;
+		/**
+		 * The number of jobs the manifest sets for repo sync, its default
+		 * sync-j, or 0 if it sets none.
+		 */
+		final int syncJobs;
+
+		private Fetches(final List<String> urls, final int syncJobs) {
+			this.urls = urls;
+			this.syncJobs = syncJobs;
+		}
+	}
+
+	/**
+	 * Returns the fetch URLs of the remotes of a manifest and the number of
+	 * jobs it sets for repo sync.
+	 *
+	 * @param manifest
+	 *            The manifest XML
+	 * @throws IOException
+	 *             if the manifest can't be read or isn't a repo manifest.
+	 */
+	static Fetches getFetches(final Reader manifest) throws IOException {
+		final ManifestParser parser = new ManifestParser();
+		parser.read(manifest);
+		return new Fetches(
+				new ArrayList<String>(parser.remoteFetches.values()),
+				parser.syncJobs);
+	}
+
+	/**
+	 * Returns the variables "repo forall" sets for each project of a
+	 * manifest: REPO_PROJECT, REPO_PATH, REPO_REMOTE and REPO_RREV, the
+	 * revision as written in the manifest. They are keyed by the client-side
+	 * paths of the projects, in the order the projects are declared.
+	 *
+	 * @param manifest
+	 *            The manifest XML, usually the output of "repo manifest"
+	 * @throws IOException
+	 *             if the manifest can't be read or isn't a repo manifest.
+	 */
+	static Map<String, Map<String, String>> getForallEnvironments(
+			final Reader manifest) throws IOException {
+		final ManifestParser parser = new ManifestParser();
+		parser.read(manifest);
+		final Map<String, Map<String, String>> environments =
+				new LinkedHashMap<String, Map<String, String>>();
+		for (final Project project : parser.projects) {
+			final Map<String, String> environment =
+					new LinkedHashMap<String, String>();
+			environment.put("REPO_PROJECT", project.name);
+			environment.put("REPO_PATH", project.path);
+			final String remote = project.remote != null ? project.remote
+					: parser.defaultRemote;
+			environment.put("REPO_REMOTE", Util.fixNull(remote));
+			environment.put("REPO_RREV",
+					Util.fixNull(parser.getRevision(project)));
+			environments.put(project.path, environment);
+		}
+		return environments;
+	}
+
+	private String getRevision(final Project project) {
+		if (project.revision != null) {
+			return project.revision;
+		}
+		final String remote =
+				project.remote != null ? project.remote : defaultRemote;
+		final String revision =
+				remote != null ? remoteRevisions.get(remote) : null;
+		return revision != null ? revision : defaultRevision;
+	}
+
+	private void read(final Reader manifest) throws IOException {
+		XMLStreamReader xml = null;
+		try {
+			xml = FACTORY.createXMLStreamReader(manifest);
+			final Deque<Project> parents = new ArrayDeque<Project>();
+			boolean root = true;
+			while (xml.hasNext()) {
+				final int event = xml.next();
+				if (event == XMLStreamConstants.END_ELEMENT
+						&& "project".equals(xml.getLocalName())) {
+					parents.pop();
+					continue;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				final String tag = xml.getLocalName();
+				if (root) {
+					if (!"manifest".equals(tag)) {
+						throw new IOException("Not a repo manifest: <" + tag
+								+ ">");
+					}
+					root = false;
+				} else if ("project".equals(tag)) {
+					final Project project = readProject(xml, parents.peek());
+					if (project.name != null) {
+						projects.add(project);
+					}
+					parents.push(project);
+				} else if ("remote".equals(tag)) {
+					final String name = getAttribute(xml, "name");
+					final String revision = getAttribute(xml, "revision");
+					final String fetch = getAttribute(xml, "fetch");
+					if (name != null && revision != null) {
+						remoteRevisions.put(name, revision);
+					}
+					if (name != null && fetch != null) {
+						remoteFetches.put(name, fetch);
+					}
+				} else if ("default".equals(tag)) {
+					final String remote = getAttribute(xml, "remote");
+					final String revision = getAttribute(xml, "revision");
+					defaultRemote = remote != null ? remote : defaultRemote;
+					defaultRevision =
+							revision != null ? revision : defaultRevision;
+					final String jobs = getAttribute(xml, "sync-j");
+					if (jobs != null) {
+						try {
+							syncJobs = Integer.parseInt(jobs);
+						} catch (final NumberFormatException e) {
+							debug.log(Level.FINE, "Ignoring sync-j " + jobs);
+						}
+					}
+				} else if ("remove-project".equals(tag)) {
+					remove(getAttribute(xml, "name"),
+							getAttribute(xml, "path"));
+				} else if ("extend-project".equals(tag)) {
+					extend(getAttribute(xml, "name"),
+							getAttribute(xml, "path"),
+							getAttribute(xml, "revision"));
+				}
+			}
+		} catch (final XMLStreamException e) {
+			throw new IOException("Unable to read the manifest: "
+					+ e.getMessage(), e);
+		} finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				} catch (final XMLStreamException e) {
+					debug.log(Level.FINE, "Unable to close the parser", e);
+				}
+			}
+		}
+	}
+
+	// A nested project's name and path are relative to its parent's.
+	private static Project readProject(final XMLStreamReader xml,
+			final Project parent) {
+		String name = getAttribute(xml, "name");
+		String path = getAttribute(xml, "path");
+		if (path == null) {
+			// 'repo manifest -o' doesn't output a path if it is the same as
+			// the server path, even if the path is specified.
+			path = name;
+		}
+		if (parent != null && parent.name != null) {
+			name = name != null ? parent.name + "/" + name : null;
+			path = path != null ? parent.path + "/" + path : null;
+		}
+		return new Project(name, path, getAttribute(xml, "revision"),
+				getAttribute(xml, "remote"));
+	}
+
+	// A project is removed by its name, its path, or both.
+	private void remove(final String name, final String path) {
+		if (name == null && path == null) {
+			return;
+		}
+		for (final Iterator<Project> it = projects.iterator(); it.hasNext();) {
+			if (matches(it.next(), name, path)) {
+				it.remove();
+			}
+		}
+	}
+
+	private void extend(final String name, final String path,
+			final String revision) {
+		if (name == null || revision == null) {
+			return;
+		}
+		for (final Project project : projects) {
+			if (matches(project, name, path)) {
+				project.revision = revision;
+			}
+		}
+	}
+
+	private static boolean matches(final Project project, final String name,
+			final String path) {
+		return (name == null || project.name.equals(name))
+				&& (path == null || project.path.equals(path));
+	}
+
+	private static String getAttribute(final XMLStreamReader xml,
+			final String name) {
+		return Util.fixEmptyAndTrim(xml.getAttributeValue(null, name));
+	}
+
+	private static XMLInputFactory createFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+}
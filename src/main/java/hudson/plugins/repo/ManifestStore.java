@@ -0,0 +1,370 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Stores the static manifests of a job's builds once, keyed by their
+ * digest, so that builds of the same manifest share it and a build only
+ * loads its manifest when it is shown. Manifests are kept compressed under
+ * repo-manifests in the job's directory, so they move and are copied with
+ * the job, and are removed within the hour after no build of the job uses
+ * them. Loaded manifests are cached until memory runs low.
+ */
+final class ManifestStore {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.ManifestStore");
+
+	private static final String DIRECTORY = "repo-manifests";
+	private static final String SUFFIX = ".xml.gz";
+	// A manifest stored this recently may belong to a running build which
+	// hasn't recorded its state yet, so it is never removed.
+	private static final long MIN_AGE = TimeUnit.HOURS.toMillis(1);
+	// The full names of the jobs to sweep.
+	private static final Set<String> PENDING = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	// Keyed by digest, so shared by every job.
+	private static final Cache<String, String> CACHE =
+			CacheBuilder.newBuilder().softValues().build();
+
+	private final File directory;
+
+	/**
+	 * Creates the store kept in the given directory.
+	 */
+	ManifestStore(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the store of a job's manifests.
+	 */
+	static ManifestStore of(final Job<?, ?> job) {
+		return new ManifestStore(new File(job.getRootDir(), DIRECTORY));
+	}
+
+	/**
+	 * Returns the digest identifying a manifest in the store.
+	 */
+	static String getDigest(final String manifest) {
+		return Util.getDigestOf(manifest);
+	}
+
+	/**
+	 * Stores a manifest, unless it is already stored.
+	 *
+	 * @param manifest
+	 *            The manifest XML
+	 * @return the digest of the manifest, or null if the manifest couldn't
+	 *         be written.
+	 */
+	String store(final String manifest) {
+		final String digest = getDigest(manifest);
+		final File file = getFile(digest);
+		CACHE.put(digest, manifest);
+		if (file.exists()) {
+			// Keeps it from being swept before its build records it.
+			file.setLastModified(System.currentTimeMillis());
+			return digest;
+		}
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create " + directory);
+			}
+			// Written aside and renamed, so a reader never sees half a file.
+			final File temp = File.createTempFile(digest, ".tmp", directory);
+			final Writer writer = new OutputStreamWriter(
+					new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8");
+			try {
+				writer.write(manifest);
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(file)) {
+				// Another build may have stored it in the meantime.
+				temp.delete();
+				if (!file.exists()) {
+					throw new IOException("Unable to create " + file);
+				}
+			}
+			return digest;
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to store manifest " + digest, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a manifest read from a stream, such as the output of repo
+	 * manifest, without holding it in memory.
+	 *
+	 * @param manifest
+	 *            The manifest XML, in UTF-8
+	 * @return the digest of the manifest.
+	 * @throws IOException
+	 *             if the manifest can't be read or written.
+	 */
+	String store(final InputStream manifest) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		final MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		final File temp = File.createTempFile("manifest", ".tmp", directory);
+		try {
+			final OutputStream out = new DigestOutputStream(
+					new GZIPOutputStream(new FileOutputStream(temp)), md5);
+			try {
+				final byte[] buffer = new byte[8192];
+				int read;
+				while ((read = manifest.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+			final String digest = Util.toHexString(md5.digest());
+			final File file = getFile(digest);
+			if (file.exists() || !temp.renameTo(file)) {
+				if (!file.exists()) {
+					throw new IOException("Unable to create " + file);
+				}
+				// Keeps it from being swept before its build records it.
+				file.setLastModified(System.currentTimeMillis());
+			}
+			return digest;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Returns a stored manifest, or null if it isn't in the store.
+	 *
+	 * @param digest
+	 *            The digest returned when the manifest was stored
+	 */
+	String load(final String digest) {
+		final String cached = CACHE.getIfPresent(digest);
+		if (cached != null) {
+			return cached;
+		}
+		try {
+			final Reader reader = open(digest);
+			if (reader == null) {
+				return null;
+			}
+			final StringBuilder manifest = new StringBuilder();
+			try {
+				final char[] buffer = new char[8192];
+				int read;
+				while ((read = reader.read(buffer)) >= 0) {
+					manifest.append(buffer, 0, read);
+				}
+			} finally {
+				reader.close();
+			}
+			final String text = manifest.toString();
+			CACHE.put(digest, text);
+			return text;
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to read manifest " + digest, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the manifests which aren't in use, except those stored within
+	 * the last hour.
+	 *
+	 * @param used
+	 *            The digests of the manifests still used by builds
+	 * @return the number of manifests removed.
+	 */
+	int sweep(final Collection<String> used) {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		final long oldest = System.currentTimeMillis() - MIN_AGE;
+		int removed = 0;
+		for (final File file : files) {
+			final String name = file.getName();
+			if (!name.endsWith(SUFFIX) || file.lastModified() > oldest) {
+				continue;
+			}
+			final String digest =
+					name.substring(0, name.length() - SUFFIX.length());
+			if (!used.contains(digest) && file.delete()) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Opens a stored manifest to read it as a stream, or returns null if it
+	 * isn't in the store.
+	 *
+	 * @param digest
+	 *            The digest returned when the manifest was stored
+	 */
+	Reader open(final String digest) throws IOException {
+		final String cached = CACHE.getIfPresent(digest);
+		if (cached != null) {
+			return new StringReader(cached);
+		}
+		final File file = getFile(digest);
+		if (!file.exists()) {
+			debug.log(Level.WARNING, "Manifest " + digest + " is missing from "
+					+ directory);
+			return null;
+		}
+		return new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+	}
+
+	private File getFile(final String digest) {
+		return new File(directory, digest + SUFFIX);
+	}
+
+	/**
+	 * Notes the jobs whose builds were deleted, so that their unused
+	 * manifests are removed by the next {@link SweepWork}. A build rotation
+	 * deletes builds one after another, and looking at every build of the
+	 * job each time would load the whole history again and again.
+	 */
+	@Extension
+	public static final class Sweeper extends RunListener<Run> {
+
+		/**
+		 * Creates the listener of all builds.
+		 */
+		public Sweeper() {
+			super(Run.class);
+		}
+
+		@Override
+		public void onDeleted(final Run deleted) {
+			final RevisionState state = deleted.getAction(RevisionState.class);
+			if (state != null && state.getManifestDigest() != null) {
+				PENDING.add(deleted.getParent().getFullName());
+			}
+		}
+	}
+
+	/**
+	 * Removes the manifests no build uses any more from the jobs whose builds
+	 * were deleted since it last ran.
+	 */
+	@Extension
+	public static final class SweepWork extends AsyncPeriodicWork {
+
+		/**
+		 * Creates the periodic sweep.
+		 */
+		public SweepWork() {
+			super("Repo manifest sweep");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return HOUR;
+		}
+
+		@Override
+		protected void execute(final TaskListener listener) {
+			for (final String name : PENDING) {
+				PENDING.remove(name);
+				final Job<?, ?> job =
+						Hudson.getInstance().getItemByFullName(name, Job.class);
+				if (job != null) {
+					sweep(job);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the manifests no build of a job uses any more.
+	 *
+	 * @return the number of manifests removed.
+	 */
+	static int sweep(final Job<?, ?> job) {
+		final Set<String> used = new HashSet<String>();
+		for (final Run<?, ?> build : job.getBuilds()) {
+			final RevisionState state = build.getAction(RevisionState.class);
+			if (state != null && state.getManifestDigest() != null) {
+				used.add(state.getManifestDigest());
+			}
+		}
+		final int removed = of(job).sweep(used);
+		if (removed > 0) {
+			debug.log(Level.FINE, "Removed " + removed
+					+ " unused manifests of " + job.getFullName());
+		}
+		return removed;
+	}
+}
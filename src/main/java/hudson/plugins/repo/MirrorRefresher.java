@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the {@link ManagedMirror}s warm. Every mirror is synced once its
+ * refresh interval has passed, and mirrors of a manifest can be refreshed
+ * right away when a webhook reports a change.
+ */
+@Extension
+public class MirrorRefresher extends AsyncPeriodicWork {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.MirrorRefresher");
+
+	// Refreshes requested by webhooks run one at a time, in the background,
+	// on a daemon thread which doesn't hold Jenkins up when it shuts down.
+	private static final ExecutorService QUEUE =
+			Executors.newSingleThreadExecutor(new ThreadFactory() {
+				private final ThreadFactory daemons =
+						new DaemonThreadFactory();
+
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = daemons.newThread(runnable);
+					thread.setName("Repo mirror refresh");
+					return thread;
+				}
+			});
+	private static final Set<ManagedMirror> PENDING =
+			new HashSet<ManagedMirror>();
+
+	/**
+	 * Creates the periodic task. Called by Jenkins.
+	 */
+	public MirrorRefresher() {
+		super("Repo mirror refresh");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return 5 * MIN;
+	}
+
+	@Override
+	protected void execute(final TaskListener listener)
+			throws IOException, InterruptedException {
+		final RepoScm.DescriptorImpl descriptor = getRepoDescriptor();
+		final long interval = descriptor.getMirrorRefreshInterval() * MIN;
+		for (final ManagedMirror mirror : descriptor.getMirrors()) {
+			if (System.currentTimeMillis() - mirror.getLastRefresh()
+					>= interval) {
+				refresh(mirror, listener);
+			}
+			if (System.currentTimeMillis() - mirror.getLastGc() >= DAY) {
+				gc(mirror, listener);
+			}
+		}
+	}
+
+	/**
+	 * Schedules a refresh of every managed mirror of a manifest repository,
+	 * on every node. Mirrors with a refresh already pending are skipped.
+	 *
+	 * @param manifestRepositoryUrl
+	 *            The URL of the manifest repository which changed
+	 */
+	static void refreshLater(final String manifestRepositoryUrl) {
+		for (final ManagedMirror mirror : getRepoDescriptor().getMirrors()) {
+			if (!mirror.getManifestRepositoryUrl().equals(
+					manifestRepositoryUrl)) {
+				continue;
+			}
+			synchronized (PENDING) {
+				if (!PENDING.add(mirror)) {
+					continue;
+				}
+			}
+			QUEUE.execute(new Runnable() {
+				public void run() {
+					synchronized (PENDING) {
+						PENDING.remove(mirror);
+					}
+					try {
+						refresh(mirror, new LogTaskListener(debug, Level.INFO));
+					} catch (final Exception e) {
+						debug.log(Level.WARNING, "Mirror refresh failed", e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Syncs a mirror on its node, if the node is online.
+	 *
+	 * @return true if the mirror was synced successfully.
+	 */
+	static boolean refresh(final ManagedMirror mirror,
+			final TaskListener listener)
+			throws IOException, InterruptedException {
+		final Node node = mirror.getNodeObject();
+		if (node == null || node.toComputer() == null
+				|| node.toComputer().isOffline()) {
+			debug.log(Level.FINE, "Skipping mirror on offline node "
+					+ mirror.getNode());
+			return false;
+		}
+		final FilePath directory = mirror.getDirectory(node);
+		if (directory == null) {
+			return false;
+		}
+		final RepoScm.DescriptorImpl descriptor = getRepoDescriptor();
+		// Counted against the host of the manifest repository only, as the
+		// remotes of a mirror which is being refreshed can't be read.
+		final SyncLimiter.Permit permit = descriptor.acquireSync(
+				mirror.getNode(),
+				Collections.singletonList(mirror.getManifestRepositoryUrl()),
+				0, listener.getLogger());
+		boolean refreshed;
+		try {
+			refreshed = mirror.update(directory, node.createLauncher(listener),
+					descriptor.getExecutable(), 0, listener.getLogger());
+		} finally {
+			permit.release();
+		}
+		if (refreshed) {
+			descriptor.save();
+		}
+		return refreshed;
+	}
+
+	/**
+	 * Garbage collects a mirror on its node, if the node is online, see
+	 * {@link ManagedMirror#gc}.
+	 */
+	static void gc(final ManagedMirror mirror, final TaskListener listener)
+			throws IOException, InterruptedException {
+		final Node node = mirror.getNodeObject();
+		if (node == null || node.toComputer() == null
+				|| node.toComputer().isOffline()) {
+			return;
+		}
+		final FilePath directory = mirror.getDirectory(node);
+		if (directory != null && mirror.gc(directory,
+				node.createLauncher(listener), listener.getLogger())) {
+			getRepoDescriptor().save();
+		}
+	}
+
+	private static RepoScm.DescriptorImpl getRepoDescriptor() {
+		return Hudson.getInstance().getDescriptorByType(
+				RepoScm.DescriptorImpl.class);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Steers the builds of jobs using {@link RepoScm#isNodeAffinity()} toward
+ * the nodes whose workspace of the manifest is the freshest. Each checkout
+ * of such a job records in {@link RepoScm.DescriptorImpl} which build last
+ * synced the manifest on its node, and computes the expected delta of every
+ * node: the number of projects whose revision differs between the build the
+ * node last synced and this checkout. A node with no record is cold, and so
+ * is every node until a checkout of the manifest after a restart. A node is
+ * refused a build while another node which can take it, with a smaller
+ * delta, has an idle executor. After {@link #MAX_WAIT}, any node is
+ * accepted.
+ */
+@Extension
+public class NodeAffinity extends QueueTaskDispatcher {
+
+	/**
+	 * How long a build may be held back waiting for a fresher node.
+	 */
+	static final long MAX_WAIT = 5 * 60 * 1000L;
+
+	// Deltas by node and manifest key, see getKey. They are computed when a
+	// checkout finishes, as canTake is called while the queue is locked and
+	// must not load builds or manifests.
+	private static final ConcurrentMap<String, Integer> DELTAS =
+			new ConcurrentHashMap<String, Integer>();
+
+	@Override
+	public CauseOfBlockage canTake(final Node node,
+			final Queue.BuildableItem item) {
+		if (!(item.task instanceof AbstractProject)) {
+			return null;
+		}
+		final AbstractProject<?, ?> project = (AbstractProject<?, ?>) item.task;
+		if (!(project.getScm() instanceof RepoScm)) {
+			return null;
+		}
+		final RepoScm scm = (RepoScm) project.getScm();
+		if (!scm.isNodeAffinity()
+				|| System.currentTimeMillis() - item.getInQueueSince()
+						> MAX_WAIT) {
+			return null;
+		}
+		final String key = scm.getManifestKey();
+		final int delta = getDelta(node.getNodeName(), key);
+		if (delta == 0) {
+			return null;
+		}
+
+		final Label label = item.getAssignedLabel();
+		for (final Node other : getNodes()) {
+			if (other.getNodeName().equals(node.getNodeName())
+					|| (label != null && !label.contains(other))) {
+				continue;
+			}
+			final Computer computer = other.toComputer();
+			if (computer == null || computer.isOffline()
+					|| !computer.isAcceptingTasks()
+					|| computer.countIdle() == 0) {
+				continue;
+			}
+			final int otherDelta = getDelta(other.getNodeName(), key);
+			if (otherDelta < delta) {
+				return new FresherNode(other, otherDelta);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a checkout of a job using node affinity, and computes the
+	 * deltas of the nodes from it. Records of nodes which no longer exist
+	 * and of manifests no job steers any more are dropped.
+	 *
+	 * @param node
+	 *            The name of the node of the checkout, empty for the master
+	 * @param manifest
+	 *            The key of the manifest, see {@link RepoScm#getManifestKey()}
+	 * @param build
+	 *            The build of the checkout
+	 * @param state
+	 *            The repository state of the checkout
+	 */
+	static void record(final RepoScm.DescriptorImpl descriptor,
+			final String node, final String manifest, final Run<?, ?> build,
+			final RevisionState state) {
+		descriptor.recordNodeBuild(node, manifest,
+				build.getExternalizableId());
+		final Map<String, RevisionState> states =
+				new HashMap<String, RevisionState>();
+		for (final Map.Entry<String, String> entry
+				: descriptor.getNodeBuilds(manifest).entrySet()) {
+			if (entry.getKey().equals(Util.fixNull(node))) {
+				continue;
+			}
+			final Run<?, ?> other =
+					Run.fromExternalizableId(entry.getValue());
+			states.put(entry.getKey(),
+					other != null ? RevisionState.getState(other) : null);
+		}
+		updateDeltas(node, manifest, state, states);
+
+		final Set<String> nodes = new HashSet<String>();
+		for (final Node other : getNodes()) {
+			nodes.add(Util.fixNull(other.getNodeName()));
+		}
+		final Set<String> manifests = new HashSet<String>();
+		for (final AbstractProject<?, ?> job
+				: Hudson.getInstance().getAllItems(AbstractProject.class)) {
+			if (job.getScm() instanceof RepoScm
+					&& ((RepoScm) job.getScm()).isNodeAffinity()) {
+				manifests.add(((RepoScm) job.getScm()).getManifestKey());
+			}
+		}
+		descriptor.pruneNodeBuilds(nodes, manifests);
+		prune(nodes, manifests);
+	}
+
+	/**
+	 * Sets the deltas of the nodes which synced a manifest after a checkout
+	 * of it.
+	 *
+	 * @param node
+	 *            The node of the checkout, whose delta is 0
+	 * @param manifest
+	 *            The key of the manifest
+	 * @param latest
+	 *            The repository state of the checkout
+	 * @param states
+	 *            The states last synced on the other nodes, null when they
+	 *            are unknown, by node name
+	 */
+	static void updateDeltas(final String node, final String manifest,
+			final RevisionState latest,
+			final Map<String, RevisionState> states) {
+		DELTAS.put(getKey(node, manifest), 0);
+		for (final Map.Entry<String, RevisionState> entry
+				: states.entrySet()) {
+			DELTAS.put(getKey(entry.getKey(), manifest),
+					getDelta(entry.getValue(), latest));
+		}
+	}
+
+	/**
+	 * Drops the deltas of the nodes and manifests not in use any more.
+	 *
+	 * @param nodes
+	 *            The names of the nodes
+	 * @param manifests
+	 *            The keys of the manifests of the jobs using node affinity
+	 */
+	static void prune(final Set<String> nodes, final Set<String> manifests) {
+		for (final String key : DELTAS.keySet()) {
+			final int separator = key.indexOf('\n');
+			if (!nodes.contains(key.substring(0, separator))
+					|| !manifests.contains(key.substring(separator + 1))) {
+				DELTAS.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the delta of a node for a manifest, as computed by the last
+	 * checkout of the manifest, or Integer.MAX_VALUE if the node is cold.
+	 */
+	static int getDelta(final String node, final String manifest) {
+		final Integer delta = DELTAS.get(getKey(node, manifest));
+		return delta != null ? delta : Integer.MAX_VALUE;
+	}
+
+	private static String getKey(final String node, final String manifest) {
+		return Util.fixNull(node) + "\n" + manifest;
+	}
+
+	/**
+	 * Returns the number of projects whose revision differs between two
+	 * repository states, or Integer.MAX_VALUE if the state of the node is
+	 * unknown.
+	 *
+	 * @param state
+	 *            The state last synced on a node, or null
+	 * @param latestState
+	 *            The state of the latest build of the job
+	 */
+	static int getDelta(final RevisionState state,
+			final RevisionState latestState) {
+		if (state == null) {
+			return Integer.MAX_VALUE;
+		}
+		if (state.getProjectsDigest().equals(
+				latestState.getProjectsDigest())) {
+			return 0;
+		}
+		return latestState.whatChanged(state).size();
+	}
+
+	private static List<Node> getNodes() {
+		final List<Node> nodes = new ArrayList<Node>();
+		nodes.add(Hudson.getInstance());
+		nodes.addAll(Hudson.getInstance().getNodes());
+		return nodes;
+	}
+
+	/**
+	 * Tells why a build waits.
+	 */
+	private static final class FresherNode extends CauseOfBlockage {
+		private final Node node;
+		private final int delta;
+
+		private FresherNode(final Node node, final int delta) {
+			this.node = node;
+			this.delta = delta;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Waiting for " + node.getDisplayName()
+					+ ", whose repo workspace is " + delta
+					+ " projects behind";
+		}
+	}
+}
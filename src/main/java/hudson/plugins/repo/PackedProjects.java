@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * The projects of a {@link RevisionState}, sorted by path, in a compact form.
+ * Revisions which are SHA-1s are packed in one array, 20 bytes per project,
+ * and other revisions are kept as strings. Paths and names are shared by the
+ * states of all builds.
+ */
+final class PackedProjects {
+
+	private static final Interner<String> NAMES =
+			Interners.newWeakInterner();
+	private static final int SHA1_LENGTH = 20;
+	private static final String HEX_DIGITS = "0123456789abcdef";
+	private static final char[] HEX = HEX_DIGITS.toCharArray();
+
+	private final String[] paths;
+	private final String[] serverPaths;
+	private final byte[] revisions;
+	// Null if every revision is a SHA-1.
+	private String[] symbolicRevisions;
+
+	/**
+	 * Packs projects.
+	 *
+	 * @param sorted
+	 *            The projects keyed by path, in path order
+	 */
+	PackedProjects(final Map<String, ProjectState> sorted) {
+		final int count = sorted.size();
+		paths = new String[count];
+		serverPaths = new String[count];
+		revisions = new byte[count * SHA1_LENGTH];
+		int i = 0;
+		for (final ProjectState project : sorted.values()) {
+			paths[i] = NAMES.intern(project.getPath());
+			serverPaths[i] = NAMES.intern(project.getServerPath());
+			final String revision = project.getRevision();
+			if (!packSha1(revision, i)) {
+				if (symbolicRevisions == null) {
+					symbolicRevisions = new String[count];
+				}
+				symbolicRevisions[i] = revision;
+			}
+			i++;
+		}
+	}
+
+	// Stores a lowercase hex SHA-1 in revisions, if the revision is one.
+	private boolean packSha1(final String revision, final int index) {
+		if (revision == null || revision.length() != SHA1_LENGTH * 2) {
+			return false;
+		}
+		final byte[] packed = new byte[SHA1_LENGTH];
+		for (int i = 0; i < SHA1_LENGTH; i++) {
+			final int high = HEX_DIGITS.indexOf(revision.charAt(2 * i));
+			final int low = HEX_DIGITS.indexOf(revision.charAt(2 * i + 1));
+			if (high < 0 || low < 0) {
+				return false;
+			}
+			packed[i] = (byte) (high << 4 | low);
+		}
+		System.arraycopy(packed, 0, revisions, index * SHA1_LENGTH,
+				SHA1_LENGTH);
+		return true;
+	}
+
+	/**
+	 * Returns the number of projects.
+	 */
+	int size() {
+		return paths.length;
+	}
+
+	/**
+	 * Returns the path of a project.
+	 */
+	String getPath(final int index) {
+		return paths[index];
+	}
+
+	/**
+	 * Returns the index of the project at a path, or a negative number if
+	 * there is none.
+	 */
+	int indexOf(final String path) {
+		return path == null ? -1 : Arrays.binarySearch(paths, path);
+	}
+
+	/**
+	 * Returns the revision of a project.
+	 */
+	String getRevision(final int index) {
+		if (symbolicRevisions != null && symbolicRevisions[index] != null) {
+			return symbolicRevisions[index];
+		}
+		final char[] hex = new char[SHA1_LENGTH * 2];
+		for (int i = 0; i < SHA1_LENGTH; i++) {
+			final int b = revisions[index * SHA1_LENGTH + i] & 0xff;
+			hex[2 * i] = HEX[b >> 4];
+			hex[2 * i + 1] = HEX[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Returns the state of a project.
+	 *
+	 * @param withRevision
+	 *            false to leave the revision out, as for a new project
+	 */
+	ProjectState getProject(final int index, final boolean withRevision) {
+		return new ProjectState(paths[index], serverPaths[index],
+				withRevision ? getRevision(index) : null);
+	}
+
+	/**
+	 * Returns the states of all projects, in path order.
+	 */
+	List<ProjectState> getProjects() {
+		final List<ProjectState> list =
+				new ArrayList<ProjectState>(paths.length);
+		for (int i = 0; i < paths.length; i++) {
+			list.add(getProject(i, true));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns a digest of the path, name and revision of every project,
+	 * which is the same for equal projects however they are packed.
+	 */
+	String getDigest() {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("MD5");
+			for (int i = 0; i < paths.length; i++) {
+				digest.update((paths[i] + '\0' + serverPaths[i] + '\0'
+						+ getRevision(i) + '\n').getBytes("UTF-8"));
+			}
+			return Util.toHexString(digest.digest());
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns true if a project has the same name and revision as a project
+	 * of another state.
+	 */
+	boolean isSame(final int index, final PackedProjects other,
+			final int otherIndex) {
+		if (!serverPaths[index].equals(other.serverPaths[otherIndex])) {
+			return false;
+		}
+		final String symbolic = symbolicRevisions != null
+				? symbolicRevisions[index] : null;
+		final String otherSymbolic = other.symbolicRevisions != null
+				? other.symbolicRevisions[otherIndex] : null;
+		if (symbolic != null || otherSymbolic != null) {
+			return symbolic != null && symbolic.equals(otherSymbolic);
+		}
+		for (int i = 0; i < SHA1_LENGTH; i++) {
+			if (revisions[index * SHA1_LENGTH + i]
+					!= other.revisions[otherIndex * SHA1_LENGTH + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof PackedProjects)) {
+			return false;
+		}
+		final PackedProjects other = (PackedProjects) obj;
+		if (!Arrays.equals(paths, other.paths)) {
+			return false;
+		}
+		for (int i = 0; i < paths.length; i++) {
+			if (!isSame(i, other, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(paths) ^ Arrays.hashCode(revisions);
+	}
+}
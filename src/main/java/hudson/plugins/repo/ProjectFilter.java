@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the projects of a repo client by path. Include and exclude
+ * patterns are separated by whitespace or commas. In a pattern, "*" matches
+ * within one path component, "**" matches across components and "?" matches
+ * one character. A pattern matching a directory also matches the projects
+ * below it. With no include pattern, every project not excluded is selected.
+ */
+final class ProjectFilter {
+
+	private final String include;
+	private final String exclude;
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+
+	/**
+	 * Creates a filter.
+	 *
+	 * @param include
+	 *            The patterns of the paths to select, or null for all
+	 * @param exclude
+	 *            The patterns of the paths to leave out, or null for none
+	 */
+	ProjectFilter(final String include, final String exclude) {
+		this.include = include;
+		this.exclude = exclude;
+		includes = compile(include);
+		excludes = compile(exclude);
+	}
+
+	/**
+	 * Returns the patterns of the paths to select, or null for all.
+	 */
+	String getInclude() {
+		return include;
+	}
+
+	/**
+	 * Returns the patterns of the paths to leave out, or null for none.
+	 */
+	String getExclude() {
+		return exclude;
+	}
+
+	/**
+	 * Returns true if the filter selects every project.
+	 */
+	boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	/**
+	 * Returns true if the project at the given path is selected.
+	 *
+	 * @param path
+	 *            The client-side path of a project
+	 */
+	boolean matches(final String path) {
+		return (includes.isEmpty() || matchesAny(includes, path))
+				&& !matchesAny(excludes, path);
+	}
+
+	/**
+	 * Returns the paths of the selected projects of a manifest, in manifest
+	 * order. The manifest should be the output of "repo manifest", which
+	 * only holds the projects of the groups of the client.
+	 *
+	 * @param manifest
+	 *            The manifest XML, read as a stream
+	 */
+	List<String> select(final Reader manifest) throws IOException {
+		final List<String> paths = new ArrayList<String>();
+		for (final ProjectState project
+				: ManifestParser.parse(manifest)) {
+			if (matches(project.getPath())) {
+				paths.add(project.getPath());
+			}
+		}
+		return paths;
+	}
+
+	private static boolean matchesAny(final List<Pattern> patterns,
+			final String path) {
+		for (final Pattern pattern : patterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(final String patterns) {
+		final List<Pattern> compiled = new ArrayList<Pattern>();
+		if (patterns == null) {
+			return compiled;
+		}
+		for (final String glob : patterns.trim().split("[\\s,]+")) {
+			if (glob.length() == 0) {
+				continue;
+			}
+			final StringBuilder regex = new StringBuilder();
+			String trimmed = glob;
+			while (trimmed.endsWith("/")) {
+				trimmed = trimmed.substring(0, trimmed.length() - 1);
+			}
+			for (int i = 0; i < trimmed.length(); i++) {
+				final char c = trimmed.charAt(i);
+				if (c == '*' && i + 1 < trimmed.length()
+						&& trimmed.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else if (c == '*') {
+					regex.append("[^/]*");
+				} else if (c == '?') {
+					regex.append("[^/]");
+				} else {
+					regex.append(Pattern.quote(String.valueOf(c)));
+				}
+			}
+			regex.append("(/.*)?");
+			compiled.add(Pattern.compile(regex.toString()));
+		}
+		return compiled;
+	}
+}
@@ -26,11 +26,15 @@ package hudson.plugins.repo;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
 import hudson.model.Run;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.PollingResult;
@@ -39,13 +43,28 @@ import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
 import hudson.scm.PollingResult.Change;
 import hudson.util.FormValidation;
+import hudson.util.ForkOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,6 +83,13 @@ public class RepoScm extends SCM {
 	private static Logger debug = Logger
 			.getLogger("hudson.plugins.repo.RepoScm");
 
+	private static final String NETWORK_ONLY = "--network-only";
+	private static final String LOCAL_ONLY = "--local-only";
+	// The file in .repo recording the digest of the last repo init command.
+	static final String INIT_MARKER = "jenkins-init";
+	// The pause, in seconds, before each attempt to repair failed projects.
+	private static final int[] REPAIR_DELAYS = {0, 10, 30};
+
 	private final String manifestRepositoryUrl;
 	private final String manifestBaseBranch;
 
@@ -75,6 +101,25 @@ public class RepoScm extends SCM {
 	private final int jobs;
 	private final String localManifest;
 	private final String destinationDir;
+	private boolean parallelForall;
+	private int forallJobs;
+	private boolean incrementalSync;
+	private int fullSyncInterval;
+	private boolean targetedPullRequest;
+	private boolean detachedCheckout;
+	private boolean managedMirror;
+	private boolean currentBranch;
+	private boolean noTags;
+	private int depth;
+	private String cloneFilter;
+	private boolean prefetch;
+	private String manifestGroup;
+	private String includeProjects;
+	private String excludeProjects;
+	private boolean autoJobs;
+	private boolean coalesceSync;
+	private boolean seedFromSnapshot;
+	private boolean nodeAffinity;
 
 	/**
 	 * Returns the manifest repository URL.
@@ -139,9 +184,308 @@ public class RepoScm extends SCM {
 		return destinationDir;
 	}
 
+	/**
+	 * Returns true if the per-project checkout and pull commands which follow
+	 * the sync are run by the plugin in parallel rather than by a serial
+	 * "repo forall".
+	 */
+	public boolean isParallelForall() {
+		return parallelForall;
+	}
+
+	/**
+	 * Sets parallelForall, see {@link #isParallelForall()}.
+	 */
+	public void setParallelForall(final boolean parallelForall) {
+		this.parallelForall = parallelForall;
+	}
+
+	/**
+	 * Returns the number of projects processed at the same time when
+	 * parallelForall is set. By default, this is 0 and the sync jobs value is
+	 * used instead.
+	 */
+	public int getForallJobs() {
+		return forallJobs;
+	}
+
+	/**
+	 * Sets forallJobs, see {@link #getForallJobs()}.
+	 */
+	public void setForallJobs(final int forallJobs) {
+		this.forallJobs = forallJobs;
+	}
+
+	/**
+	 * Returns true if only the projects which changed since the last build
+	 * are synced, with a full sync run periodically and whenever the manifest
+	 * changes.
+	 */
+	public boolean isIncrementalSync() {
+		return incrementalSync;
+	}
+
+	/**
+	 * Sets incrementalSync, see {@link #isIncrementalSync()}.
+	 */
+	public void setIncrementalSync(final boolean incrementalSync) {
+		this.incrementalSync = incrementalSync;
+	}
+
+	/**
+	 * Returns the maximum number of hours between full syncs when
+	 * incrementalSync is set. By default, this is 0 and a full sync is run
+	 * once a day.
+	 */
+	public int getFullSyncInterval() {
+		return fullSyncInterval;
+	}
+
+	/**
+	 * Sets fullSyncInterval, see {@link #getFullSyncInterval()}.
+	 */
+	public void setFullSyncInterval(final int fullSyncInterval) {
+		this.fullSyncInterval = fullSyncInterval;
+	}
+
+	/**
+	 * Returns true if a pull request build fetches and checks out the pull
+	 * request head in the pull request's project only, rather than trying to
+	 * check out the pull request branch in every project.
+	 */
+	public boolean isTargetedPullRequest() {
+		return targetedPullRequest;
+	}
+
+	/**
+	 * Sets targetedPullRequest, see {@link #isTargetedPullRequest()}.
+	 */
+	public void setTargetedPullRequest(final boolean targetedPullRequest) {
+		this.targetedPullRequest = targetedPullRequest;
+	}
+
+	/**
+	 * Returns true if every project is left detached at the revision checked
+	 * out by repo sync, instead of checking out the base branch and pulling.
+	 * The static manifest recorded for the build then matches the synced
+	 * revisions exactly.
+	 */
+	public boolean isDetachedCheckout() {
+		return detachedCheckout;
+	}
+
+	/**
+	 * Sets detachedCheckout, see {@link #isDetachedCheckout()}.
+	 */
+	public void setDetachedCheckout(final boolean detachedCheckout) {
+		this.detachedCheckout = detachedCheckout;
+	}
+
+	/**
+	 * Returns true if the plugin creates and refreshes a repo mirror of the
+	 * manifest on every node, and uses it as the reference for repo init.
+	 * Takes precedence over mirrorDir.
+	 */
+	public boolean isManagedMirror() {
+		return managedMirror;
+	}
+
+	/**
+	 * Sets managedMirror, see {@link #isManagedMirror()}.
+	 */
+	public void setManagedMirror(final boolean managedMirror) {
+		this.managedMirror = managedMirror;
+	}
+
+	/**
+	 * Returns true if only the manifest revision of each project is fetched
+	 * ("repo sync --current-branch").
+	 */
+	public boolean isCurrentBranch() {
+		return currentBranch;
+	}
+
+	/**
+	 * Sets currentBranch, see {@link #isCurrentBranch()}.
+	 */
+	public void setCurrentBranch(final boolean currentBranch) {
+		this.currentBranch = currentBranch;
+	}
+
+	/**
+	 * Returns true if tags are not fetched ("repo sync --no-tags").
+	 */
+	public boolean isNoTags() {
+		return noTags;
+	}
+
+	/**
+	 * Sets noTags, see {@link #isNoTags()}.
+	 */
+	public void setNoTags(final boolean noTags) {
+		this.noTags = noTags;
+	}
+
+	/**
+	 * Returns the depth of the initial clone of each project. By default,
+	 * this is 0 and full history is cloned.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Sets depth, see {@link #getDepth()}.
+	 */
+	public void setDepth(final int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns the partial clone filter, such as "blob:none". By default, this
+	 * is null and full clones are made.
+	 */
+	public String getCloneFilter() {
+		return cloneFilter;
+	}
+
+	/**
+	 * Sets cloneFilter, see {@link #getCloneFilter()}.
+	 */
+	public void setCloneFilter(final String cloneFilter) {
+		this.cloneFilter = Util.fixEmptyAndTrim(cloneFilter);
+	}
+
+	/**
+	 * Returns true if the network half of the sync is run ahead of the build,
+	 * when a webhook triggers the job, in the workspace of the node which last
+	 * built it.
+	 */
+	public boolean isPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Sets prefetch, see {@link #isPrefetch()}.
+	 */
+	public void setPrefetch(final boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Returns the manifest groups to sync, passed to repo init as -g. By
+	 * default, this is null and repo's default groups are used.
+	 */
+	public String getManifestGroup() {
+		return manifestGroup;
+	}
+
+	/**
+	 * Sets manifestGroup, see {@link #getManifestGroup()}.
+	 */
+	public void setManifestGroup(final String manifestGroup) {
+		this.manifestGroup = Util.fixEmptyAndTrim(manifestGroup);
+	}
+
+	/**
+	 * Returns the patterns of the project paths to sync. By default, this is
+	 * null and all projects of the manifest groups are synced.
+	 */
+	public String getIncludeProjects() {
+		return includeProjects;
+	}
+
+	/**
+	 * Sets includeProjects, see {@link #getIncludeProjects()}.
+	 */
+	public void setIncludeProjects(final String includeProjects) {
+		this.includeProjects = Util.fixEmptyAndTrim(includeProjects);
+	}
+
+	/**
+	 * Returns the patterns of the project paths not to sync. By default, this
+	 * is null and no project is left out.
+	 */
+	public String getExcludeProjects() {
+		return excludeProjects;
+	}
+
+	/**
+	 * Sets excludeProjects, see {@link #getExcludeProjects()}.
+	 */
+	public void setExcludeProjects(final String excludeProjects) {
+		this.excludeProjects = Util.fixEmptyAndTrim(excludeProjects);
+	}
+
+	/**
+	 * Returns true if the number of sync jobs is picked for each build from
+	 * the node's CPU count and its recent syncs, instead of using jobs.
+	 */
+	public boolean isAutoJobs() {
+		return autoJobs;
+	}
+
+	/**
+	 * Sets autoJobs, see {@link #isAutoJobs()}.
+	 */
+	public void setAutoJobs(final boolean autoJobs) {
+		this.autoJobs = autoJobs;
+	}
+
+	/**
+	 * Returns true if concurrent builds of this manifest on a node share one
+	 * sync of the managed mirror and fetch from it.
+	 */
+	public boolean isCoalesceSync() {
+		return coalesceSync;
+	}
+
+	/**
+	 * Sets coalesceSync, see {@link #isCoalesceSync()}.
+	 */
+	public void setCoalesceSync(final boolean coalesceSync) {
+		this.coalesceSync = coalesceSync;
+	}
+
+	/**
+	 * Returns true if new workspaces are seeded from a snapshot of the .repo
+	 * directory of another workspace of this manifest, which the plugin
+	 * keeps up to date.
+	 */
+	public boolean isSeedFromSnapshot() {
+		return seedFromSnapshot;
+	}
+
+	/**
+	 * Sets seedFromSnapshot, see {@link #isSeedFromSnapshot()}.
+	 */
+	public void setSeedFromSnapshot(final boolean seedFromSnapshot) {
+		this.seedFromSnapshot = seedFromSnapshot;
+	}
+
+	/**
+	 * Returns true if builds prefer the nodes whose workspace of the manifest
+	 * is the freshest, see {@link NodeAffinity}.
+	 */
+	public boolean isNodeAffinity() {
+		return nodeAffinity;
+	}
+
+	/**
+	 * Sets nodeAffinity, see {@link #isNodeAffinity()}.
+	 */
+	public void setNodeAffinity(final boolean nodeAffinity) {
+		this.nodeAffinity = nodeAffinity;
+	}
+
+	private ProjectFilter getProjectFilter() {
+		return new ProjectFilter(includeProjects, excludeProjects);
+	}
+
 	/**
 	 * The constructor takes in user parameters and sets them. Each job using
-	 * the RepoSCM will call this constructor.
+	 * the RepoSCM will call this constructor. The other options are set
+	 * through their setters, and are off by default.
 	 *
 	 * @param manifestRepositoryUrl
 	 *            The URL for the manifest repository.
@@ -251,9 +595,11 @@ public class RepoScm extends SCM {
 	@Override
 	public boolean checkout(
 			@SuppressWarnings("rawtypes") final AbstractBuild build,
-			final Launcher launcher, final FilePath workspace,
+			final Launcher buildLauncher, final FilePath workspace,
 			final BuildListener listener, final File changelogFile)
 			throws IOException, InterruptedException {
+		final CountingLauncher launcher = new CountingLauncher(buildLauncher,
+				getDescriptor().createWatchdog(listener.getLogger()));
 
 		FilePath repoDir;
 		if (destinationDir != null) {
@@ -278,147 +624,1201 @@ public class RepoScm extends SCM {
 		} catch (Exception e) {
 			debug.log(Level.INFO, "Get branch error");
 		}
-		if (!checkoutCode(launcher, repoDir, listener.getLogger(), branch)) {
-			return false;
+		final RevisionState previousState =
+				getLastState(build.getPreviousBuild());
+		final int syncJobs = getSyncJobs(build.getBuiltOn(), launcher);
+		final int forallThreads = getForallThreads(launcher);
+		SyncTelemetry telemetry = null;
+		if (autoJobs && build.getBuiltOn() != null) {
+			telemetry = getDescriptor().getTelemetry(
+					build.getBuiltOn().getNodeName());
+			listener.getLogger().println("Using " + syncJobs
+					+ " sync jobs and " + forallThreads + " forall jobs");
+		}
+		// Taken before the sync permit, as a running prefetch holds the
+		// workspace while it waits for one. Waits for a running prefetch or
+		// maintenance of the workspace.
+		String prefetched = null;
+		if (build.getBuiltOn() != null) {
+			final ReentrantLock lock =
+					WorkspaceLock.get(build.getBuiltOn(), repoDir);
+			WorkspaceLock.lock(lock, repoDir.getRemote(),
+					WorkspaceLock.LOG_INTERVAL, listener.getLogger());
+			try {
+				if (prefetch) {
+					prefetched = SyncPrefetcher.takeMark(repoDir);
+				}
+			} finally {
+				lock.unlock();
+			}
 		}
-		final String manifest =
-				getStaticManifest(launcher, repoDir, listener.getLogger());
-		final RevisionState currentState =
-				new RevisionState(manifest, manifestBranch,
+		final List<String> repaired = new ArrayList<String>();
+		final AtomicBoolean unchanged = new AtomicBoolean();
+		launcher.setPhase(Watchdog.Phase.SYNC);
+		// The snapshot is written in the background by WorkspaceMaintenance.
+		if (seedFromSnapshot && build.getBuiltOn() != null) {
+			final FilePath snapshot = WorkspaceSnapshot.locate(
+					build.getBuiltOn(),
+					launcher, getDescriptor().getSnapshotDir(),
+					getManifestKey());
+			if (snapshot != null) {
+				WorkspaceSnapshot.seed(snapshot, repoDir, launcher,
 						listener.getLogger());
+			}
+		}
+		String reference = mirrorDir;
+		String sharedMirror = null;
+		if (managedMirror) {
+			final SyncLimiter.Permit permit = acquireSync(build.getBuiltOn(),
+					launcher, repoDir, syncJobs, listener.getLogger());
+			try {
+				final String mirror = prepareMirror(build.getBuiltOn(),
+						launcher, syncJobs, repoDir, listener.getLogger());
+				if (mirror != null) {
+					reference = mirror;
+					if (coalesceSync && refreshSharedMirror(
+							build.getBuiltOn(), launcher, syncJobs,
+							listener.getLogger())) {
+						sharedMirror = mirror;
+					}
+				}
+			} finally {
+				permit.release();
+			}
+		}
+		final long start = System.currentTimeMillis();
+		final boolean checkedOut = checkoutCode(launcher, build.getBuiltOn(),
+				repoDir, listener.getLogger(), branch, previousState,
+				reference, sharedMirror, prefetched, syncJobs, forallThreads,
+				telemetry, repaired, unchanged);
+		if (checkedOut) {
+			WorkspaceMaintenance.recordCheckout(repoDir,
+					System.currentTimeMillis() - start, listener.getLogger());
+		}
+		if (!repaired.isEmpty()) {
+			build.addAction(new SyncRepairAction(build, repaired));
+		}
+		if (!checkedOut) {
+			return false;
+		}
+		launcher.setPhase(Watchdog.Phase.FORALL);
+		if ((targetedPullRequest || detachedCheckout) && action != null
+				&& !checkoutPullRequest(launcher, repoDir,
+						listener.getLogger(), action, previousState)) {
+			return false;
+		}
+		final RevisionState currentState;
+		if (unchanged.get() && action == null) {
+			// The tree is exactly as the previous build left it, so is its
+			// manifest.
+			currentState = new RevisionState(previousState);
+		} else {
+			launcher.setPhase(Watchdog.Phase.MANIFEST);
+			final ManifestStore store = ManifestStore.of(build.getProject());
+			final String digest = storeStaticManifest(launcher, repoDir,
+					listener.getLogger(), store);
+			currentState = new RevisionState(store, digest, manifestBranch,
+					getProjectFilter(), listener.getLogger());
+		}
 		build.addAction(currentState);
-		final RevisionState previousState =
-				getLastState(build.getPreviousBuild());
+		if (nodeAffinity && build.getBuiltOn() != null) {
+			NodeAffinity.record(getDescriptor(),
+					build.getBuiltOn().getNodeName(), getManifestKey(), build,
+					currentState);
+		}
 
+		launcher.setPhase(Watchdog.Phase.CHANGELOG);
 		ChangeLog.saveChangeLog(currentState, previousState, changelogFile,
 				launcher, repoDir);
 		build.addAction(new TagAction(build));
+		final int processes =
+				launcher.getTotal(currentState.getProjectCount());
+		listener.getLogger().println("Checkout started " + processes
+				+ " processes (" + launcher.getLaunched() + " directly)");
+		debug.log(Level.INFO, "Checkout of " + build.getDisplayName()
+				+ " started " + processes + " processes");
 		return true;
 	}
 
-	private int doSync(final Launcher launcher, final FilePath workspace,
-			final OutputStream logger)
-		throws IOException, InterruptedException {
-		final List<String> commands = new ArrayList<String>(4);
-		debug.log(Level.FINE, "Syncing out code in: " + workspace.getName());
-		commands.clear();
-		commands.add(getDescriptor().getExecutable());
-		commands.add("sync");
-		commands.add("-d");
-		if (jobs > 0) {
-			commands.add("--jobs=" + jobs);
-		}
-		int returnCode =
-				launcher.launch().stdout(logger).pwd(workspace)
-						.cmds(commands).join();
-		return returnCode;
+	/**
+	 * Returns the string identifying this manifest in snapshots and node
+	 * records: its URL, branch, file and groups.
+	 */
+	String getManifestKey() {
+		return manifestRepositoryUrl + "\n" + Util.fixNull(manifestBranch)
+				+ "\n" + Util.fixNull(manifestFile) + "\n"
+				+ Util.fixNull(manifestGroup);
 	}
 
-	private boolean checkoutCode(final Launcher launcher,
-			final FilePath workspace, final OutputStream logger,
-			final String branch)
+	/**
+	 * Returns the path of the managed mirror of this manifest on a node,
+	 * creating the mirror first if it doesn't exist yet, and records the
+	 * workspace as one of its users. Returns null if the mirror can't be
+	 * used, in which case the build goes on without one.
+	 */
+	private String prepareMirror(final Node node, final Launcher launcher,
+			final int syncJobs, final FilePath workspace,
+			final PrintStream logger)
 			throws IOException, InterruptedException {
-		final List<String> commands = new ArrayList<String>(4);
-
-		debug.log(Level.INFO, "Checking out code in: " + workspace.getName()
-				+ " branch:" + branch + " manifestRepositoryUrl:" + manifestRepositoryUrl + "manifestBaseBranch:" + manifestBaseBranch);
-
-		commands.add(getDescriptor().getExecutable());
-		commands.add("init");
-		commands.add("-u");
-		commands.add(manifestRepositoryUrl);
-		if (manifestBranch != null) {
-			commands.add("-b");
-			commands.add(manifestBranch);
+		if (node == null) {
+			return null;
 		}
-		if (manifestFile != null) {
-			commands.add("-m");
-			commands.add(manifestFile);
+		final ManagedMirror mirror =
+				getDescriptor().getMirror(node.getNodeName(),
+						manifestRepositoryUrl, manifestBranch, manifestFile);
+		final FilePath directory = mirror.getDirectory(node);
+		if (directory == null) {
+			return null;
 		}
-		if (mirrorDir != null) {
-			commands.add("--reference=" + mirrorDir);
+		if (!ManagedMirror.exists(directory)) {
+			if (!mirror.update(directory, launcher,
+					getDescriptor().getExecutable(), syncJobs, logger)) {
+				logger.println("Continuing without a mirror");
+				return null;
+			}
+			getDescriptor().save();
 		}
-		if (repoUrl != null) {
-			commands.add("--repo-url=" + repoUrl);
-			commands.add("--no-repo-verify");
+		mirror.addReferrer(directory, workspace);
+		logger.println("Using repo mirror " + directory.getRemote());
+		return directory.getRemote();
+	}
+
+	/**
+	 * Brings the managed mirror of this manifest on a node up to date for a
+	 * build, sharing the sync with the concurrent builds of the same
+	 * manifest, see {@link ManagedMirror#refreshShared}.
+	 *
+	 * @return true if the mirror is up to date.
+	 */
+	private boolean refreshSharedMirror(final Node node,
+			final Launcher launcher, final int syncJobs,
+			final PrintStream logger)
+			throws IOException, InterruptedException {
+		final ManagedMirror mirror =
+				getDescriptor().getMirror(node.getNodeName(),
+						manifestRepositoryUrl, manifestBranch, manifestFile);
+		final FilePath directory = mirror.getDirectory(node);
+		if (directory == null) {
+			return false;
 		}
-		int returnCode =
-				launcher.launch().stdout(logger).pwd(workspace)
-						.cmds(commands).join();
-		if (returnCode != 0) {
+		final long lastRefresh = mirror.getLastRefresh();
+		if (!mirror.refreshShared(directory, launcher,
+				getDescriptor().getExecutable(), syncJobs, logger)) {
+			logger.println("Fetching from the network instead");
 			return false;
 		}
-		if (workspace != null) {
-			FilePath rdir = workspace.child(".repo");
-			FilePath lm = rdir.child("local_manifest.xml");
-			if (localManifest != null) {
-				lm.write(localManifest, null);
-			} else {
-				lm.delete();
+		if (mirror.getLastRefresh() != lastRefresh) {
+			getDescriptor().saveRecords();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the environment which makes the sync fetch from a shared
+	 * mirror, or null if the manifest can't be read or has no remote.
+	 */
+	private String[] getFetchRedirect(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final String sharedMirror)
+			throws IOException, InterruptedException {
+		try {
+			return readManifest(launcher, workspace, logger, false,
+					new ManifestReader<String[]>() {
+						public String[] read(final InputStream manifest)
+								throws IOException {
+							return ManagedMirror.getFetchRedirect(
+									new InputStreamReader(manifest, "UTF-8"),
+									manifestRepositoryUrl, sharedMirror);
+						}
+					});
+		} catch (final IOException e) {
+			logger.println("Unable to read the manifest: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Syncs the repo client. A recent prefetch only needs a local sync.
+	 * Otherwise all projects are synced, or only the changed ones with
+	 * incremental sync. If the sync fails, the projects which failed are
+	 * repaired and synced again, see {@link #repair}.
+	 *
+	 * @param selected
+	 *            The projects selected by the include and exclude patterns, or
+	 *            null for all
+	 * @param syncJobs
+	 *            The number of sync jobs
+	 * @param fetchEnv
+	 *            The environment redirecting fetches to a shared mirror, or
+	 *            null. Repairs fetch from the network.
+	 * @param telemetry
+	 *            Records the duration of the sync, or null
+	 * @param repaired
+	 *            Receives the projects which had to be repaired
+	 * @return true if the sync succeeded.
+	 */
+	private boolean sync(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final RevisionState previousState,
+			final boolean prefetched, final List<String> selected,
+			final int syncJobs, final String[] fetchEnv,
+			final SyncTelemetry telemetry, final List<String> repaired)
+			throws IOException, InterruptedException {
+		if (prefetched) {
+			logger.println("The network sync was prefetched, syncing locally");
+			if (doSync(launcher, workspace, logger, selected, LOCAL_ONLY,
+					syncJobs, null) == 0) {
+				return true;
 			}
+			logger.println("Local sync failed, syncing from the network");
 		}
 
-		returnCode = doSync(launcher, workspace, logger);
-		if (returnCode != 0) {
-			debug.log(Level.WARNING, "Sync failed. Resetting repository");
-			commands.clear();
-			commands.add(getDescriptor().getExecutable());
-			commands.add("forall");
-			commands.add("-c");
-			commands.add("git reset --hard");
-			launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
-				.join();
-			returnCode = doSync(launcher, workspace, logger);
-			if (returnCode != 0) {
+		// With incremental sync, projects becomes the changed projects unless
+		// a full sync is due.
+		List<String> projects = selected;
+		boolean fullSync = true;
+		IncrementalSync incremental = null;
+		if (incrementalSync) {
+			incremental = new IncrementalSync(getDescriptor().getExecutable(),
+					launcher, workspace, logger);
+			final int hours = fullSyncInterval > 0 ? fullSyncInterval : 24;
+			if (!incremental.isFullSyncDue(localManifest,
+					hours * 60L * 60L * 1000L) && previousState != null) {
+				final List<String> changed = incremental.getChangedProjects(
+						previousState, syncJobs, selected);
+				if (changed != null) {
+					projects = changed;
+					fullSync = false;
+				}
+			}
+		}
+
+		if (!fullSync && projects.isEmpty()) {
+			logger.println("No project changed, skipping sync");
+		} else {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			final long start = System.currentTimeMillis();
+			final int returnCode = doSync(launcher, workspace,
+					new ForkOutputStream(logger, output), projects, null,
+					syncJobs, fetchEnv);
+			// Incremental syncs skip most of the work, so their throughput
+			// says nothing about the best number of jobs.
+			if (returnCode == 0 && telemetry != null && fullSync) {
+				recordSync(telemetry, syncJobs,
+						System.currentTimeMillis() - start, projects,
+						previousState);
+			}
+			if (returnCode != 0 && !repair(launcher, workspace, logger,
+					projects, output.toString(), syncJobs, repaired)) {
+				if (incremental != null) {
+					incremental.clearFullSync();
+				}
 				return false;
 			}
+			if (incremental != null && fullSync) {
+				incremental.recordFullSync();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Repairs the projects which failed to sync and syncs them again. The
+	 * first attempt resets the failed projects. The following attempts, after
+	 * a pause, delete them so that repo clones them again, from the mirror if
+	 * there is one. If the failed projects can't be told from the output of
+	 * repo, all synced projects are reset and synced once more.
+	 *
+	 * @param projects
+	 *            The projects which were synced, or null for all
+	 * @param output
+	 *            The output of the failed sync
+	 * @param syncJobs
+	 *            The number of sync jobs
+	 * @param repaired
+	 *            Receives the projects which had to be repaired
+	 * @return true if the projects were repaired and synced.
+	 */
+	private boolean repair(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final List<String> projects,
+			final String output, final int syncJobs,
+			final List<String> repaired)
+			throws IOException, InterruptedException {
+		List<String> failed = SyncFailures.parse(output);
+		if (failed.isEmpty()) {
+			debug.log(Level.WARNING, "Sync failed. Resetting repository");
+			logger.println("Sync failed in unknown projects, resetting all"
+					+ " of them");
+			reset(launcher, workspace, logger, projects);
+			return doSync(launcher, workspace, logger, projects, null,
+					syncJobs, null) == 0;
+		}
+		for (int attempt = 0; attempt < REPAIR_DELAYS.length; attempt++) {
+			if (REPAIR_DELAYS[attempt] > 0) {
+				logger.println("Retrying in " + REPAIR_DELAYS[attempt]
+						+ " seconds");
+				Thread.sleep(REPAIR_DELAYS[attempt] * 1000L);
+			}
+			for (final String project : failed) {
+				if (!repaired.contains(project)) {
+					repaired.add(project);
+				}
+			}
+			List<String> targets = failed;
+			if (attempt == 0) {
+				logger.println("Sync failed in " + Util.join(failed, ", ")
+						+ ", resetting them");
+				reset(launcher, workspace, logger, failed);
+			} else {
+				logger.println("Sync failed in " + Util.join(failed, ", ")
+						+ ", cloning them again");
+				targets = remove(launcher, workspace, logger, failed);
+			}
+			final ByteArrayOutputStream retryOutput =
+					new ByteArrayOutputStream();
+			if (doSync(launcher, workspace,
+					new ForkOutputStream(logger, retryOutput), targets,
+					null, syncJobs, null) == 0) {
+				debug.log(Level.INFO, "Repaired " + failed + " in "
+						+ workspace.getRemote());
+				return true;
+			}
+			final List<String> stillFailed =
+					SyncFailures.parse(retryOutput.toString());
+			if (!stillFailed.isEmpty()) {
+				failed = stillFailed;
+			}
+		}
+		logger.println("Unable to repair " + Util.join(failed, ", "));
+		return false;
+	}
+
+	/**
+	 * Runs "git reset --hard" in the given projects, or in all of them.
+	 */
+	private void reset(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final List<String> projects)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(4);
+		commands.add(getDescriptor().getExecutable());
+		commands.add("forall");
+		if (projects != null) {
+			commands.addAll(projects);
 		}
-		String checkouBranch = manifestBaseBranch == null ? "master" : manifestBaseBranch; 
-		
-		commands.clear();
-		commands.add(getDescriptor().getExecutable());
-		commands.add("forall");
 		commands.add("-c");
-		commands.add("git checkout " + checkouBranch);
+		commands.add("git reset --hard");
 		launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
 			.join();
-		
-		if (branch != null) {
-			commands.clear();
-			commands.add(getDescriptor().getExecutable());
-			commands.add("forall");
-			commands.add("-c");
-			commands.add("git checkout " + branch);
-			launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
-				.join();
+	}
+
+	/**
+	 * Deletes the working trees and git directories of the given projects,
+	 * named by path or by name, so that the next sync clones them again. The
+	 * objects of a project are shared by all its paths, so all of them are
+	 * deleted and returned as the paths to sync.
+	 */
+	private List<String> remove(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final List<String> failed)
+			throws IOException, InterruptedException {
+		final Map<String, String> all =
+				getProjects(launcher, workspace, logger);
+		if (all == null) {
+			return failed;
+		}
+		final List<String> paths = new ArrayList<String>();
+		final FilePath repo = workspace.child(".repo");
+		for (final String project : failed) {
+			String name = all.get(project);
+			if (name == null && all.containsValue(project)) {
+				name = project;
+			}
+			if (name == null) {
+				// Not a project of the manifest, let repo report it again.
+				paths.add(project);
+				continue;
+			}
+			repo.child("project-objects").child(name + ".git")
+					.deleteRecursive();
+			for (final Map.Entry<String, String> entry : all.entrySet()) {
+				if (entry.getValue().equals(name)
+						&& !paths.contains(entry.getKey())) {
+					workspace.child(entry.getKey()).deleteRecursive();
+					repo.child("projects").child(entry.getKey() + ".git")
+							.deleteRecursive();
+					paths.add(entry.getKey());
+				}
+			}
+		}
+		// Projects nested in a deleted working tree lost their checkout
+		// too, but keep their git directories.
+		for (final String path : all.keySet()) {
+			for (final String removed : new ArrayList<String>(paths)) {
+				if (path.startsWith(removed + "/") && !paths.contains(path)) {
+					paths.add(path);
+				}
+			}
 		}
+		return paths;
+	}
+
+	/**
+	 * Runs the network half of a sync in a workspace ahead of a build, under
+	 * the same sync limits as a checkout. Called by {@link SyncPrefetcher}.
+	 *
+	 * @param node
+	 *            The node holding the workspace
+	 * @param launcher
+	 *            A launcher for the node holding the workspace
+	 * @param workspace
+	 *            The root of the repo client
+	 * @param logger
+	 *            Where to log the output of repo
+	 * @return true if the sync succeeded.
+	 */
+	boolean prefetch(final Node node, final Launcher launcher,
+			final FilePath workspace, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final List<String> selected =
+				selectProjects(launcher, workspace, logger);
+		if (selected != null && selected.isEmpty()) {
+			return false;
+		}
+		final int syncJobs = getSyncJobs(node, launcher);
+		final SyncLimiter.Permit permit =
+				acquireSync(node, launcher, workspace, syncJobs, logger);
+		try {
+			return doSync(launcher, workspace, logger, selected,
+					NETWORK_ONLY, syncJobs, null) == 0;
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Waits until a sync of a repo client may run, see {@link SyncLimiter}.
+	 * The sync fetches from the manifest repository, and from the remotes of
+	 * the client's manifest once the client is initialized.
+	 *
+	 * @param syncJobs
+	 *            The number of jobs of the sync, or 0 for those of the
+	 *            manifest or else repo's default
+	 * @return the permit to release once the sync is done.
+	 */
+	private SyncLimiter.Permit acquireSync(final Node node,
+			final Launcher launcher, final FilePath workspace,
+			final int syncJobs, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final List<String> urls = new ArrayList<String>();
+		urls.add(manifestRepositoryUrl);
+		int connections = syncJobs;
+		if (getDescriptor().getMaxFetchesPerHost() > 0
+				&& workspace.child(".repo").child("manifests").isDirectory()) {
+			try {
+				final ManifestParser.Fetches fetches = readManifest(launcher,
+						workspace, logger, false,
+						new ManifestReader<ManifestParser.Fetches>() {
+							public ManifestParser.Fetches read(
+									final InputStream manifest)
+									throws IOException {
+								return ManifestParser.getFetches(
+										new InputStreamReader(manifest,
+												"UTF-8"));
+							}
+						});
+				if (fetches != null) {
+					if (connections == 0) {
+						// repo sync uses the jobs of the manifest.
+						connections = fetches.syncJobs;
+					}
+					for (final String url : fetches.urls) {
+						final String resolved = ManagedMirror.resolve(
+								manifestRepositoryUrl, url);
+						if (resolved != null) {
+							urls.add(resolved);
+						}
+					}
+				}
+			} catch (final IOException e) {
+				logger.println("Unable to read the remotes of the manifest: "
+						+ e);
+			}
+		}
+		return getDescriptor().acquireSync(
+				node != null ? node.getNodeName() : null, urls, connections,
+				logger);
+	}
+
+	/**
+	 * Records the duration of a successful full sync. The number of projects
+	 * is taken from the previous build unless only some projects were
+	 * selected, so the first full sync of a job isn't recorded.
+	 */
+	private void recordSync(final SyncTelemetry telemetry, final int syncJobs,
+			final long millis, final List<String> projects,
+			final RevisionState previousState) {
+		int count = 0;
+		if (projects != null) {
+			count = projects.size();
+		} else if (previousState != null) {
+			count = previousState.getProjectCount();
+		}
+		if (count > 0) {
+			telemetry.record(syncJobs, millis, count);
+			getDescriptor().saveRecords();
+		}
+	}
+
+	/**
+	 * Returns the number of sync jobs to use on a node: jobs, or with
+	 * autoJobs a number picked from the node's recent syncs.
+	 */
+	private int getSyncJobs(final Node node, final Launcher launcher)
+			throws InterruptedException {
+		if (!autoJobs || node == null) {
+			return jobs;
+		}
+		return getDescriptor().getTelemetry(node.getNodeName()).pickJobs(
+				SyncTelemetry.getCores(launcher),
+				getDescriptor().getMaxAutoJobs());
+	}
+
+	/**
+	 * Returns the number of projects to process at the same time with
+	 * parallelForall: forallJobs if set, otherwise the node's CPU count with
+	 * autoJobs, or jobs.
+	 */
+	private int getForallThreads(final Launcher launcher)
+			throws InterruptedException {
+		if (forallJobs > 0) {
+			return forallJobs;
+		}
+		if (autoJobs) {
+			return Math.min(SyncTelemetry.getCores(launcher),
+					getDescriptor().getMaxAutoJobs());
+		}
+		return jobs;
+	}
+
+	private int doSync(final Launcher launcher, final FilePath workspace,
+			final OutputStream logger, final List<String> projects,
+			final String phase, final int syncJobs, final String[] envs)
+		throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(4);
+		debug.log(Level.FINE, "Syncing out code in: " + workspace.getName());
 		commands.clear();
 		commands.add(getDescriptor().getExecutable());
+		commands.add("sync");
+		if (phase != null) {
+			commands.add(phase);
+		}
+		if (!NETWORK_ONLY.equals(phase)) {
+			commands.add("-d");
+		}
+		if (syncJobs > 0) {
+			commands.add("--jobs=" + syncJobs);
+		}
+		if (currentBranch) {
+			commands.add("--current-branch");
+		}
+		if (noTags) {
+			commands.add("--no-tags");
+		}
+		if (projects != null) {
+			commands.addAll(projects);
+		}
+		final Launcher.ProcStarter starter =
+				launcher.launch().stdout(logger).pwd(workspace).cmds(commands);
+		if (envs != null) {
+			starter.envs(envs);
+		}
+		return starter.join();
+	}
+
+	private boolean checkoutCode(final CountingLauncher launcher,
+			final Node node, final FilePath workspace,
+			final PrintStream logger,
+			final String branch, final RevisionState previousState,
+			final String reference, final String sharedMirror,
+			final String prefetchedManifest,
+			final int syncJobs, final int forallThreads,
+			final SyncTelemetry telemetry, final List<String> repaired,
+			final AtomicBoolean unchanged)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(4);
+
+		debug.log(Level.INFO, "Checking out code in: " + workspace.getName()
+				+ " branch:" + branch + " manifestRepositoryUrl:" + manifestRepositoryUrl + "manifestBaseBranch:" + manifestBaseBranch);
+
+		commands.add(getDescriptor().getExecutable());
+		commands.add("init");
+		commands.add("-u");
+		commands.add(manifestRepositoryUrl);
+		if (manifestBranch != null) {
+			commands.add("-b");
+			commands.add(manifestBranch);
+		}
+		if (manifestFile != null) {
+			commands.add("-m");
+			commands.add(manifestFile);
+		}
+		if (manifestGroup != null) {
+			commands.add("-g");
+			commands.add(manifestGroup);
+		}
+		if (reference != null) {
+			commands.add("--reference=" + reference);
+		}
+		if (depth > 0) {
+			commands.add("--depth=" + depth);
+		}
+		if (cloneFilter != null) {
+			commands.add("--partial-clone");
+			commands.add("--clone-filter=" + cloneFilter);
+		}
+		if (repoUrl != null) {
+			commands.add("--repo-url=" + repoUrl);
+			commands.add("--no-repo-verify");
+		}
+		launcher.setPhase(Watchdog.Phase.INIT);
+		if (!init(launcher, workspace, logger, commands)) {
+			return false;
+		}
+		if (workspace != null) {
+			FilePath rdir = workspace.child(".repo");
+			FilePath lm = rdir.child("local_manifest.xml");
+			if (localManifest != null) {
+				lm.write(localManifest, null);
+			} else {
+				lm.delete();
+			}
+		}
+
+		// A prefetch is only good for the manifest it fetched for.
+		boolean prefetched = false;
+		if (prefetchedManifest != null) {
+			prefetched = prefetchedManifest.equals(
+					SyncPrefetcher.getManifest(launcher, workspace));
+			if (!prefetched) {
+				logger.println("The manifest changed since the prefetch,"
+						+ " syncing from the network");
+			}
+		}
+
+		launcher.setPhase(Watchdog.Phase.MANIFEST);
+		final List<String> selected =
+				selectProjects(launcher, workspace, logger);
+		if (selected != null && selected.isEmpty()) {
+			return false;
+		}
+		launcher.setPhase(Watchdog.Phase.SYNC);
+		String[] fetchEnv = null;
+		if (sharedMirror != null && !prefetched) {
+			fetchEnv = getFetchRedirect(launcher, workspace, logger,
+					sharedMirror);
+			if (fetchEnv != null) {
+				logger.println("Fetching from the shared repo mirror");
+			}
+		}
+		final SyncLimiter.Permit permit =
+				acquireSync(node, launcher, workspace, syncJobs, logger);
+		try {
+			if (!sync(launcher, workspace, logger, previousState, prefetched,
+					selected, syncJobs, fetchEnv, telemetry, repaired)) {
+				return false;
+			}
+		} finally {
+			permit.release();
+		}
+
+		// A targeted pull request is checked out after this step, in its
+		// own project only.
+		final String pullBranch =
+				targetedPullRequest ? null : Util.fixEmptyAndTrim(branch);
+		final String command = getPostSyncCommand(manifestBaseBranch,
+				pullBranch, detachedCheckout);
+		final boolean checkedOut = command == null
+				|| checkoutBranch(launcher, workspace, logger, command,
+						pullBranch != null ? 3 : 2, selected, forallThreads);
+		if (checkedOut && Util.fixEmptyAndTrim(branch) == null
+				&& isUnchanged(launcher, workspace, logger, previousState,
+						selected, forallThreads)) {
+			logger.println("No project changed since the last build,"
+					+ " reusing its manifest");
+			unchanged.set(true);
+		}
+		return checkedOut;
+	}
+
+	/**
+	 * Returns the step run in every project after the sync, or null if there
+	 * is none. In a detached checkout, repo sync -d already left every
+	 * project at the revision from the manifest, and pulling would move past
+	 * it. Otherwise see {@link #getCheckoutCommand}.
+	 *
+	 * @param baseBranch
+	 *            The branch checked out in every project, or null for master
+	 * @param pullBranch
+	 *            The branch of a pull request, or null
+	 * @param detached
+	 *            true for a detached checkout
+	 */
+	static String getPostSyncCommand(final String baseBranch,
+			final String pullBranch, final boolean detached) {
+		if (detached) {
+			return null;
+		}
+		return getCheckoutCommand(baseBranch == null ? "master" : baseBranch,
+				pullBranch);
+	}
+
+	/**
+	 * Runs the per-project step after the sync in every selected project.
+	 * Projects in which the step fails are reported in the build log, and
+	 * don't fail the checkout.
+	 *
+	 * @param command
+	 *            The step, see {@link #getPostSyncCommand}
+	 * @param gitCommands
+	 *            The number of git commands of the step
+	 */
+	private boolean checkoutBranch(final CountingLauncher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final String command, final int gitCommands,
+			final List<String> selected, final int forallThreads)
+			throws IOException, InterruptedException {
+		launcher.setPhase(Watchdog.Phase.FORALL);
+		if (parallelForall) {
+			return checkoutProjects(launcher, workspace, logger, command,
+					gitCommands, selected, forallThreads);
+		}
+		final int forallCode =
+				forall(launcher, workspace, logger, command, selected);
+		// One shell plus its git commands in each project
+		launcher.addPerProject(1 + gitCommands);
+		if (forallCode != 0) {
+			logger.println("Unable to check out in at least one project"
+					+ " (exit code " + forallCode + ")");
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the shell command which checks out the base branch, the pull
+	 * request branch if there is one, and pulls, in a single step per
+	 * project. Every git command runs even if an earlier one failed, as
+	 * separate repo forall commands would. The command exits with an error
+	 * if the checkout of the base branch or the pull failed, and prints which
+	 * one did.
+	 *
+	 * @param baseBranch
+	 *            The branch checked out in every project
+	 * @param pullBranch
+	 *            The branch of a pull request, or null
+	 */
+	static String getCheckoutCommand(final String baseBranch,
+			final String pullBranch) {
+		final StringBuilder command = new StringBuilder("failed=0; ");
+		appendStep(command, "git checkout " + baseBranch);
+		if (pullBranch != null) {
+			// The branch usually exists in only one of the projects, so
+			// failures here are expected.
+			command.append("git checkout ").append(pullBranch)
+					.append(" || true; ");
+		}
+		appendStep(command, "git pull");
+		return command.append("exit $failed").toString();
+	}
+
+	private static void appendStep(final StringBuilder command,
+			final String step) {
+		command.append(step).append(" || { echo \"").append(step)
+				.append(" failed\"; failed=1; }; ");
+	}
+
+	/**
+	 * Runs repo init, unless the workspace was already initialized with the
+	 * same command. In that case only the manifest project is brought up to
+	 * date, which is all repo init would change. The command is recorded in
+	 * .repo by its digest.
+	 *
+	 * @param commands
+	 *            The repo init command line
+	 * @return true if the workspace is initialized.
+	 */
+	static boolean init(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final List<String> commands)
+			throws IOException, InterruptedException {
+		final FilePath marker = workspace.child(".repo").child(INIT_MARKER);
+		final String fingerprint = Util.getDigestOf(Util.join(commands, "\n"));
+		final FilePath manifests = workspace.child(".repo").child("manifests");
+		if (marker.exists() && manifests.isDirectory()
+				&& fingerprint.equals(marker.readToString().trim())) {
+			final int returnCode = launcher.launch().stdout(logger)
+					.pwd(manifests).cmds("git", "pull", "--ff-only").join();
+			if (returnCode == 0) {
+				logger.println("repo is already initialized with the same"
+						+ " settings, updated the manifest only");
+				return true;
+			}
+			logger.println("Unable to update the manifest (exit code "
+					+ returnCode + "), running repo init");
+		}
+		marker.delete();
+		final int returnCode =
+				launcher.launch().stdout(logger).pwd(workspace)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			return false;
+		}
+		marker.write(fingerprint, null);
+		return true;
+	}
+
+	/**
+	 * Returns true if the given projects, or all projects if null, are the
+	 * projects of the previous build and are all at the revisions it
+	 * recorded after the checkout, in which case the workspace is exactly as
+	 * the previous build left it. Only the HEAD of every project is read.
+	 */
+	private boolean isUnchanged(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final RevisionState previousState, final List<String> projects,
+			final int threads)
+			throws IOException, InterruptedException {
+		if (previousState == null || previousState.getProjectCount() == 0
+				|| !Util.fixNull(manifestBranch).equals(
+						Util.fixNull(previousState.getBranch()))) {
+			return false;
+		}
+		final List<String> commands = new ArrayList<String>(5);
+		commands.add(getDescriptor().getExecutable());
 		commands.add("forall");
+		if (projects != null) {
+			commands.addAll(projects);
+		}
+		if (threads > 0) {
+			commands.add("--jobs=" + threads);
+		}
 		commands.add("-c");
-		commands.add("git pull");
-		launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
-			.join();
+		commands.add("echo \"$REPO_PATH $(git rev-parse HEAD)\"");
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stderr(logger).stdout(output).pwd(workspace)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			return false;
+		}
+		return previousState.isAt(output.toString());
+	}
 
+	/**
+	 * Runs a command in the given projects, or in every project if null,
+	 * through "repo forall" and returns its exit code. repo only reports the
+	 * exit code of the last failing project.
+	 */
+	private int forall(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final String command,
+			final List<String> projects)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(4);
+		commands.add(getDescriptor().getExecutable());
+		commands.add("forall");
+		if (projects != null) {
+			commands.addAll(projects);
+		}
+		commands.add("-c");
+		commands.add(command);
+		return launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
+				.join();
+	}
+
+	/**
+	 * Runs the per-project checkout command in the given projects, or in
+	 * every project if null, several projects at a time. Unlike the forall
+	 * version, a project in which the command fails fails the checkout.
+	 */
+	private boolean checkoutProjects(final CountingLauncher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final String command, final int gitCommands,
+			final List<String> projects, final int threads)
+			throws IOException, InterruptedException {
+		final Map<String, Map<String, String>> environments =
+				getForallEnvironments(launcher, workspace, logger);
+		if (environments == null) {
+			return false;
+		}
+		if (projects != null) {
+			environments.keySet().retainAll(projects);
+		}
+		final ForallRunner runner =
+				new ForallRunner(launcher, workspace, logger, threads);
+		final List<String> failed = runner.run(environments, command);
+		// The shells are counted by the launcher, their git commands are not.
+		launcher.addPerProject(gitCommands);
+		if (!failed.isEmpty()) {
+			logger.println("Unable to check out in: " + failed);
+		}
 		return true;
 	}
 
-	private String getStaticManifest(final Launcher launcher,
-			final FilePath workspace, final OutputStream logger)
+	/**
+	 * Fetches the head of a pull request and checks it out in the project
+	 * which the pull request belongs to. All other projects are left as they
+	 * are. The project is found by matching the pull request's repository
+	 * name against the server paths of the previous repository state, or of
+	 * "repo list" if there is no previous state or no match.
+	 */
+	private boolean checkoutPullRequest(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final GitHubPullRequestAction action,
+			final RevisionState previousState)
+			throws IOException, InterruptedException {
+		final String repoName =
+				Util.fixEmptyAndTrim(action.getData().get("repoName"));
+		final String issueNumber =
+				Util.fixEmptyAndTrim(action.getData().get("issueNumber"));
+		final String sha = Util.fixEmptyAndTrim(action.getData().get("sha"));
+		if (repoName == null || issueNumber == null) {
+			logger.println("The pull request has no repository or number");
+			return false;
+		}
+
+		final List<String> paths = new ArrayList<String>();
+		if (previousState != null) {
+			for (final ProjectState project : previousState.getProjects()) {
+				if (isRepository(project.getServerPath(), repoName)) {
+					paths.add(project.getPath());
+				}
+			}
+		}
+		if (paths.isEmpty()) {
+			final Map<String, String> projects =
+					getProjects(launcher, workspace, logger);
+			if (projects == null) {
+				return false;
+			}
+			final ProjectFilter filter = getProjectFilter();
+			for (final Map.Entry<String, String> project
+					: projects.entrySet()) {
+				if (isRepository(project.getValue(), repoName)
+						&& filter.matches(project.getKey())) {
+					paths.add(project.getKey());
+				}
+			}
+		}
+		if (paths.isEmpty()) {
+			logger.println("No project in the manifest matches " + repoName);
+			return false;
+		}
+
+		logger.println("Checking out pull request #" + issueNumber + " in "
+				+ paths);
+		final List<String> commands = new ArrayList<String>(4);
+		commands.add(getDescriptor().getExecutable());
+		commands.add("forall");
+		commands.addAll(paths);
+		commands.add("-c");
+		commands.add("git fetch \"$REPO_REMOTE\" refs/pull/" + issueNumber
+				+ "/head && git checkout -q "
+				+ (sha != null ? sha : "FETCH_HEAD"));
+		final int returnCode =
+				launcher.launch().stdout(logger).pwd(workspace)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			logger.println("Unable to check out pull request #" + issueNumber
+					+ " (exit code " + returnCode + ")");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if a project's server path names the given GitHub
+	 * repository, that is if its last component is the repository name.
+	 */
+	private static boolean isRepository(final String serverPath,
+			final String repoName) {
+		String name = serverPath;
+		if (name.endsWith(".git")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name.equals(repoName) || name.endsWith("/" + repoName);
+	}
+
+	/**
+	 * Returns the paths of the projects selected by the include and exclude
+	 * patterns, read from "repo manifest", or null if there are no patterns
+	 * and every project is used. If the manifest can't be read or no project
+	 * is selected, the reason is logged and an empty list is returned, which
+	 * must not be passed to repo as it would mean every project.
+	 */
+	private List<String> selectProjects(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final ProjectFilter filter = getProjectFilter();
+		if (filter.isEmpty()) {
+			return null;
+		}
+		List<String> selected;
+		try {
+			selected = readManifest(launcher, workspace, logger, false,
+					new ManifestReader<List<String>>() {
+						public List<String> read(final InputStream manifest)
+								throws IOException {
+							return filter.select(
+									new InputStreamReader(manifest, "UTF-8"));
+						}
+					});
+		} catch (final IOException e) {
+			logger.println("Unable to read the manifest: " + e);
+			return new ArrayList<String>();
+		}
+		if (selected == null) {
+			return new ArrayList<String>();
+		}
+		if (selected.isEmpty()) {
+			logger.println("No project matches the include and exclude"
+					+ " patterns");
+		} else {
+			logger.println("Selected " + selected.size()
+					+ " projects matching the include and exclude patterns");
+		}
+		return selected;
+	}
+
+	/**
+	 * Returns the variables repo forall sets for each project of the repo
+	 * client, keyed by their client-side paths, read from "repo manifest",
+	 * or null if the manifest can't be read.
+	 */
+	private Map<String, Map<String, String>> getForallEnvironments(
+			final Launcher launcher, final FilePath workspace,
+			final PrintStream logger)
+			throws IOException, InterruptedException {
+		try {
+			return readManifest(launcher, workspace, logger, false,
+					new ManifestReader<Map<String, Map<String, String>>>() {
+						public Map<String, Map<String, String>> read(
+								final InputStream manifest)
+								throws IOException {
+							return ManifestParser.getForallEnvironments(
+									new InputStreamReader(manifest, "UTF-8"));
+						}
+					});
+		} catch (final IOException e) {
+			logger.println("Unable to read the manifest: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the server-side names of all projects in the repo client keyed
+	 * by their client-side paths, as reported by "repo list", or null if repo
+	 * list failed.
+	 */
+	private Map<String, String> getProjects(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger)
 			throws IOException, InterruptedException {
 		final ByteArrayOutputStream output = new ByteArrayOutputStream();
-		final List<String> commands = new ArrayList<String>(6);
+		final List<String> commands = new ArrayList<String>(2);
+		commands.add(getDescriptor().getExecutable());
+		commands.add("list");
+		final int returnCode =
+				launcher.launch().stderr(logger).stdout(output).pwd(workspace)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			logger.println("repo list failed (exit code " + returnCode + ")");
+			return null;
+		}
+		return parseList(output.toString());
+	}
+
+	/**
+	 * Returns the server-side names of the projects listed by "repo list",
+	 * keyed by their client-side paths.
+	 */
+	static Map<String, String> parseList(final String output) {
+		final Map<String, String> projects =
+				new LinkedHashMap<String, String>();
+		for (final String line : output.split("\\n")) {
+			// Each line has the form "path : name".
+			final int separator = line.indexOf(" : ");
+			if (separator > 0) {
+				projects.put(line.substring(0, separator).trim(),
+						line.substring(separator + 3).trim());
+			}
+		}
+		return projects;
+	}
+
+	/**
+	 * Reads a manifest as a stream, see {@link RepoScm#readManifest}.
+	 */
+	private interface ManifestReader<T> {
+		T read(InputStream manifest) throws IOException;
+	}
+
+	/**
+	 * Runs "repo manifest", and hands its output to a reader as repo writes
+	 * it, so that the manifest is never held in memory as a whole.
+	 *
+	 * @param revisions
+	 *            true for the static manifest, with the revision of every
+	 *            project
+	 * @return what the reader returned, or null if repo manifest failed.
+	 * @throws IOException
+	 *             if the reader failed, in which case repo is killed.
+	 */
+	private <T> T readManifest(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final boolean revisions, final ManifestReader<T> reader)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(5);
 		commands.add(getDescriptor().getExecutable());
 		commands.add("manifest");
 		commands.add("-o");
 		commands.add("-");
-		commands.add("-r");
-		// TODO: should we pay attention to the output from this?
-		launcher.launch().stderr(logger).stdout(output).pwd(workspace)
-				.cmds(commands).join();
-		final String manifestText = output.toString();
-		debug.log(Level.FINEST, manifestText);
-		return manifestText;
+		if (revisions) {
+			commands.add("-r");
+		}
+		final Proc proc = launcher.launch().stderr(logger).readStdout()
+				.pwd(workspace).cmds(commands).start();
+		final InputStream output = proc.getStdout();
+		final T result;
+		try {
+			result = reader.read(output);
+		} catch (final IOException e) {
+			proc.kill();
+			throw e;
+		} finally {
+			output.close();
+		}
+		final int returnCode = proc.join();
+		if (returnCode != 0) {
+			logger.println("repo manifest failed (exit code " + returnCode
+					+ ")");
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the static manifest of the repo client to a store as repo
+	 * outputs it.
+	 *
+	 * @return the digest of the manifest, or null if repo manifest failed.
+	 */
+	private String storeStaticManifest(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final ManifestStore store)
+			throws IOException, InterruptedException {
+		return readManifest(launcher, workspace, logger, true,
+				new ManifestReader<String>() {
+					public String read(final InputStream manifest)
+							throws IOException {
+						return store.store(manifest);
+					}
+				});
 	}
 
 	private RevisionState getLastState(final Run<?, ?> lastBuild) {
@@ -426,7 +1826,7 @@ public class RepoScm extends SCM {
 			return null;
 		}
 		final RevisionState lastState =
-				lastBuild.getAction(RevisionState.class);
+				RevisionState.getState(lastBuild);
 		if (lastState != null && lastState.getBranch() == manifestBranch) {
 			return lastState;
 		}
@@ -450,7 +1850,30 @@ public class RepoScm extends SCM {
 	 */
 	@Extension
 	public static class DescriptorImpl extends SCMDescriptor<RepoScm> {
+		/**
+		 * The minimum time between two saves of the records of builds, see
+		 * {@link #saveRecords()}.
+		 */
+		static final long SAVE_INTERVAL = 60 * 1000L;
+
 		private String repoExecutable;
+		private int mirrorRefreshInterval;
+		private List<ManagedMirror> mirrors;
+		private int maxAutoJobs;
+		private Map<String, SyncTelemetry> telemetry;
+		private int maxSyncsPerNode;
+		private int maxFetchesPerHost;
+		private String snapshotDir;
+		private Map<String, String> nodeBuilds;
+		private int maintenanceInterval;
+		private int initTimeout;
+		private int syncTimeout;
+		private int forallTimeout;
+		private int manifestTimeout;
+		private int changelogTimeout;
+		private int idleTimeout;
+		private transient long lastSave;
+		private transient boolean unsaved;
 
 		/**
 		 * Call the superclass constructor and load our configuration from the
@@ -461,17 +1884,169 @@ public class RepoScm extends SCM {
 			load();
 		}
 
+		// The records of builds are changed by the builds while the
+		// configuration is written, so they are kept in concurrent
+		// collections, whatever they were loaded as.
+		@Override
+		public synchronized void load() {
+			super.load();
+			if (mirrors != null) {
+				mirrors = new CopyOnWriteArrayList<ManagedMirror>(mirrors);
+			}
+			if (telemetry != null) {
+				telemetry =
+						new ConcurrentHashMap<String, SyncTelemetry>(telemetry);
+			}
+			if (nodeBuilds != null) {
+				nodeBuilds = new ConcurrentHashMap<String, String>(nodeBuilds);
+			}
+		}
+
+		@Override
+		public synchronized void save() {
+			lastSave = System.currentTimeMillis();
+			unsaved = false;
+			super.save();
+		}
+
+		/**
+		 * Saves the records of builds: the sync telemetry, the builds of
+		 * each node and the refresh times of the mirrors. As they change
+		 * with every build, the configuration is written at most every
+		 * {@link #SAVE_INTERVAL}. The records of the builds in between are
+		 * written by the next save, at the latest by the
+		 * {@link RecordsFlusher}.
+		 */
+		synchronized void saveRecords() {
+			if (System.currentTimeMillis() - lastSave < SAVE_INTERVAL) {
+				unsaved = true;
+			} else {
+				save();
+			}
+		}
+
+		/**
+		 * Saves the records of builds not written yet, see
+		 * {@link #saveRecords()}.
+		 */
+		synchronized void flushRecords() {
+			if (unsaved) {
+				save();
+			}
+		}
+
+		/**
+		 * Saves the records of builds not written yet every
+		 * {@link DescriptorImpl#SAVE_INTERVAL}.
+		 */
+		@Extension
+		public static final class RecordsFlusher extends PeriodicWork {
+
+			@Override
+			public long getRecurrencePeriod() {
+				return SAVE_INTERVAL;
+			}
+
+			@Override
+			protected void doRun() {
+				Hudson.getInstance().getDescriptorByType(DescriptorImpl.class)
+						.flushRecords();
+			}
+		}
+
 		@Override
 		public String getDisplayName() {
 			return "Gerrit Repo";
 		}
 
+		/**
+		 * Creates the SCM of a job from its configuration form. The options
+		 * which aren't constructor parameters are set through their setters.
+		 */
+		@Override
+		public RepoScm newInstance(final StaplerRequest req,
+				final JSONObject formData) throws FormException {
+			final RepoScm scm = (RepoScm) super.newInstance(req, formData);
+			scm.setParallelForall(isChecked(req, "parallelForall"));
+			scm.setIncrementalSync(isChecked(req, "incrementalSync"));
+			scm.setTargetedPullRequest(isChecked(req, "targetedPullRequest"));
+			scm.setDetachedCheckout(isChecked(req, "detachedCheckout"));
+			scm.setManagedMirror(isChecked(req, "managedMirror"));
+			scm.setCurrentBranch(isChecked(req, "currentBranch"));
+			scm.setNoTags(isChecked(req, "noTags"));
+			scm.setPrefetch(isChecked(req, "prefetch"));
+			scm.setAutoJobs(isChecked(req, "autoJobs"));
+			scm.setCoalesceSync(isChecked(req, "coalesceSync"));
+			scm.setSeedFromSnapshot(isChecked(req, "seedFromSnapshot"));
+			scm.setNodeAffinity(isChecked(req, "nodeAffinity"));
+			scm.setForallJobs(getNumber(req, "forallJobs"));
+			scm.setFullSyncInterval(getNumber(req, "fullSyncInterval"));
+			scm.setDepth(getNumber(req, "depth"));
+			scm.setCloneFilter(req.getParameter("repo.cloneFilter"));
+			scm.setManifestGroup(req.getParameter("repo.manifestGroup"));
+			scm.setIncludeProjects(req.getParameter("repo.includeProjects"));
+			scm.setExcludeProjects(req.getParameter("repo.excludeProjects"));
+			return scm;
+		}
+
+		private static boolean isChecked(final StaplerRequest req,
+				final String name) {
+			final String value = req.getParameter("repo." + name);
+			return "on".equals(value) || "true".equals(value);
+		}
+
+		private static int getNumber(final StaplerRequest req,
+				final String name) throws FormException {
+			return parseNumber(req.getParameter("repo." + name),
+					"repo." + name);
+		}
+
+		/**
+		 * Parses a numeric option of the configuration form. An empty value
+		 * is 0, which turns the option off.
+		 *
+		 * @param field
+		 *            The name of the form field, for the error
+		 * @throws FormException
+		 *             if the value isn't a number, or is negative, rather
+		 *             than turning the option off silently.
+		 */
+		static int parseNumber(final String value, final String field)
+				throws FormException {
+			final String number = Util.fixEmptyAndTrim(value);
+			if (number == null) {
+				return 0;
+			}
+			try {
+				final int parsed = Integer.parseInt(number);
+				if (parsed >= 0) {
+					return parsed;
+				}
+			} catch (final NumberFormatException e) {
+				// reported below
+			}
+			throw new FormException("Not a number of 0 or more: " + number,
+					field);
+		}
+
 		@Override
 		public boolean configure(final StaplerRequest req,
 				final JSONObject json)
 				throws hudson.model.Descriptor.FormException {
 			repoExecutable =
 					Util.fixEmptyAndTrim(json.getString("executable"));
+			mirrorRefreshInterval = json.optInt("mirrorRefreshInterval");
+			maxAutoJobs = json.optInt("maxAutoJobs");
+			maxSyncsPerNode = json.optInt("maxSyncsPerNode");
+			maxFetchesPerHost = json.optInt("maxFetchesPerHost");
+			snapshotDir = Util.fixEmptyAndTrim(json.optString("snapshotDir"));
+			maintenanceInterval = json.optInt("maintenanceInterval");
+			initTimeout = json.optInt("initTimeout");
+			syncTimeout = json.optInt("syncTimeout");
+			forallTimeout = json.optInt("forallTimeout");
+			manifestTimeout = json.optInt("manifestTimeout");
+			changelogTimeout = json.optInt("changelogTimeout");
+			idleTimeout = json.optInt("idleTimeout");
 			save();
 			return super.configure(req, json);
 		}
@@ -489,6 +2064,21 @@ public class RepoScm extends SCM {
 			return FormValidation.validateExecutable(value);
 		}
 
+		/**
+		 * Checks that a numeric option of a job is empty or a number of 0 or
+		 * more, see {@link #parseNumber}.
+		 *
+		 * @param value
+		 *            The value of the option
+		 */
+		public FormValidation doNumberCheck(
+				@QueryParameter final String value) {
+			if (Util.fixEmptyAndTrim(value) == null) {
+				return FormValidation.ok();
+			}
+			return FormValidation.validateNonNegativeInteger(value.trim());
+		}
+
 		/**
 		 * Returns the command to use when running repo. By default, we assume
 		 * that repo is in the server's PATH and just return "repo".
@@ -500,5 +2090,280 @@ public class RepoScm extends SCM {
 				return repoExecutable;
 			}
 		}
+
+		/**
+		 * Returns the number of minutes between two refreshes of a managed
+		 * mirror. Defaults to 60.
+		 */
+		public int getMirrorRefreshInterval() {
+			return mirrorRefreshInterval > 0 ? mirrorRefreshInterval : 60;
+		}
+
+		/**
+		 * Returns the highest number of jobs picked for jobs set to
+		 * automatic. Defaults to 16.
+		 */
+		public int getMaxAutoJobs() {
+			return maxAutoJobs > 0 ? maxAutoJobs : 16;
+		}
+
+		/**
+		 * Returns the maximum number of syncs running at the same time on a
+		 * node, 0 for no limit.
+		 */
+		public int getMaxSyncsPerNode() {
+			return maxSyncsPerNode;
+		}
+
+		/**
+		 * Returns the maximum number of fetch connections open at the same
+		 * time to a git server, 0 for no limit.
+		 */
+		public int getMaxFetchesPerHost() {
+			return maxFetchesPerHost;
+		}
+
+		/**
+		 * Returns the directory holding the workspace snapshots, shared by
+		 * all nodes, or null if each node keeps its own snapshots.
+		 */
+		public String getSnapshotDir() {
+			return snapshotDir;
+		}
+
+		/**
+		 * Returns the number of days between two maintenances of an idle
+		 * workspace, 0 if workspaces are not maintained.
+		 */
+		public int getMaintenanceInterval() {
+			return maintenanceInterval;
+		}
+
+		/**
+		 * Returns the number of minutes a command of repo init may run, 0
+		 * for no limit.
+		 */
+		public int getInitTimeout() {
+			return initTimeout;
+		}
+
+		/**
+		 * Returns the number of minutes a command of repo sync may run, 0
+		 * for no limit.
+		 */
+		public int getSyncTimeout() {
+			return syncTimeout;
+		}
+
+		/**
+		 * Returns the number of minutes a repo forall command may run, 0 for
+		 * no limit.
+		 */
+		public int getForallTimeout() {
+			return forallTimeout;
+		}
+
+		/**
+		 * Returns the number of minutes a repo manifest command may run, 0
+		 * for no limit.
+		 */
+		public int getManifestTimeout() {
+			return manifestTimeout;
+		}
+
+		/**
+		 * Returns the number of minutes a git command of the change log may
+		 * run, 0 for no limit.
+		 */
+		public int getChangelogTimeout() {
+			return changelogTimeout;
+		}
+
+		/**
+		 * Returns the number of minutes a command may run without output
+		 * before it is considered hung, 0 for no limit.
+		 */
+		public int getIdleTimeout() {
+			return idleTimeout;
+		}
+
+		/**
+		 * Returns a watchdog enforcing the timeouts of this descriptor, or
+		 * null if there are none.
+		 *
+		 * @param logger
+		 *            The build log
+		 */
+		Watchdog createWatchdog(final PrintStream logger) {
+			final Map<Watchdog.Phase, Long> timeouts =
+					new EnumMap<Watchdog.Phase, Long>(Watchdog.Phase.class);
+			timeouts.put(Watchdog.Phase.INIT, initTimeout * 60000L);
+			timeouts.put(Watchdog.Phase.SYNC, syncTimeout * 60000L);
+			timeouts.put(Watchdog.Phase.FORALL, forallTimeout * 60000L);
+			timeouts.put(Watchdog.Phase.MANIFEST, manifestTimeout * 60000L);
+			timeouts.put(Watchdog.Phase.CHANGELOG, changelogTimeout * 60000L);
+			if (idleTimeout <= 0 && Collections.max(timeouts.values()) <= 0) {
+				return null;
+			}
+			return new Watchdog(timeouts, idleTimeout * 60000L, logger);
+		}
+
+		/**
+		 * Waits until a sync may start under the limits of this descriptor,
+		 * see {@link SyncLimiter}.
+		 *
+		 * @param node
+		 *            The name of the node running the sync
+		 * @param urls
+		 *            The URLs the sync fetches from
+		 * @param syncJobs
+		 *            The number of jobs of the sync
+		 * @param logger
+		 *            Where to log the wait
+		 * @return the permit to release after the sync.
+		 */
+		SyncLimiter.Permit acquireSync(final String node,
+				final Collection<String> urls, final int syncJobs,
+				final PrintStream logger) throws InterruptedException {
+			return SyncLimiter.acquire(node, maxSyncsPerNode, urls,
+					maxFetchesPerHost, syncJobs, logger);
+		}
+
+		/**
+		 * Returns the ids of the builds which last synced a manifest, by the
+		 * name of their node.
+		 *
+		 * @param manifest
+		 *            The key of the manifest, see {@link RepoScm#getManifestKey()}
+		 */
+		synchronized Map<String, String> getNodeBuilds(
+				final String manifest) {
+			final Map<String, String> builds = new HashMap<String, String>();
+			if (nodeBuilds == null) {
+				return builds;
+			}
+			for (final Map.Entry<String, String> entry
+					: nodeBuilds.entrySet()) {
+				final String key = entry.getKey();
+				final int separator = key.indexOf('\n');
+				if (key.substring(separator + 1).equals(manifest)) {
+					builds.put(key.substring(0, separator), entry.getValue());
+				}
+			}
+			return builds;
+		}
+
+		/**
+		 * Drops the records of the builds of nodes and manifests not in use
+		 * any more.
+		 *
+		 * @param nodes
+		 *            The names of the nodes
+		 * @param manifests
+		 *            The keys of the manifests of the jobs using node
+		 *            affinity
+		 */
+		void pruneNodeBuilds(final Set<String> nodes,
+				final Set<String> manifests) {
+			boolean pruned = false;
+			synchronized (this) {
+				if (nodeBuilds == null) {
+					return;
+				}
+				for (final String key : nodeBuilds.keySet()) {
+					final int separator = key.indexOf('\n');
+					if (!nodes.contains(key.substring(0, separator))
+							|| !manifests.contains(
+									key.substring(separator + 1))) {
+						nodeBuilds.remove(key);
+						pruned = true;
+					}
+				}
+			}
+			if (pruned) {
+				saveRecords();
+			}
+		}
+
+		/**
+		 * Records the build which last synced a manifest on a node.
+		 *
+		 * @param node
+		 *            The name of the node, empty for the master
+		 * @param manifest
+		 *            The key of the manifest, see {@link RepoScm#getManifestKey()}
+		 * @param build
+		 *            The id of the build, see Run.getExternalizableId()
+		 */
+		void recordNodeBuild(final String node, final String manifest,
+				final String build) {
+			synchronized (this) {
+				if (nodeBuilds == null) {
+					nodeBuilds = new ConcurrentHashMap<String, String>();
+				}
+				nodeBuilds.put(Util.fixNull(node) + "\n" + manifest, build);
+			}
+			saveRecords();
+		}
+
+		/**
+		 * Returns the recent syncs of a node, creating an empty history if
+		 * there is none.
+		 *
+		 * @param node
+		 *            The name of the node, empty for the master
+		 */
+		synchronized SyncTelemetry getTelemetry(final String node) {
+			if (telemetry == null) {
+				telemetry = new ConcurrentHashMap<String, SyncTelemetry>();
+			}
+			SyncTelemetry nodeTelemetry = telemetry.get(Util.fixNull(node));
+			if (nodeTelemetry == null) {
+				nodeTelemetry = new SyncTelemetry(Util.fixNull(node));
+				telemetry.put(Util.fixNull(node), nodeTelemetry);
+			}
+			return nodeTelemetry;
+		}
+
+		/**
+		 * Returns the managed mirror of a manifest on a node, registering it
+		 * if this is the first time it is asked for. The mirror itself is not
+		 * created.
+		 *
+		 * @param node
+		 *            The name of the node, empty for the master
+		 * @param url
+		 *            The URL of the manifest repository
+		 * @param branch
+		 *            The branch of the manifest repository, or null
+		 * @param file
+		 *            The manifest file, or null
+		 */
+		synchronized ManagedMirror getMirror(final String node,
+				final String url, final String branch, final String file) {
+			if (mirrors == null) {
+				mirrors = new CopyOnWriteArrayList<ManagedMirror>();
+			}
+			for (final ManagedMirror mirror : mirrors) {
+				if (mirror.matches(node, url, branch, file)) {
+					return mirror;
+				}
+			}
+			final ManagedMirror mirror =
+					new ManagedMirror(node, url, branch, file);
+			mirrors.add(mirror);
+			save();
+			return mirror;
+		}
+
+		/**
+		 * Returns all registered managed mirrors.
+		 */
+		synchronized List<ManagedMirror> getMirrors() {
+			if (mirrors == null) {
+				return new ArrayList<ManagedMirror>();
+			}
+			return new ArrayList<ManagedMirror>(mirrors);
+		}
 	}
 }
@@ -23,27 +23,23 @@
  */
 package hudson.plugins.repo;
 
-import hudson.Util;
+import hudson.model.Run;
 import hudson.scm.SCMRevisionState;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * A RevisionState records the state of the repository for a particular build.
@@ -52,10 +48,32 @@ import org.xml.sax.InputSource;
 @SuppressWarnings("serial")
 public class RevisionState extends SCMRevisionState implements Serializable {
 
-	private final String manifest;
-	private final Map<String, ProjectState> projects =
-			new TreeMap<String, ProjectState>();
+	/**
+	 * The number of states whose projects are kept in memory. The projects
+	 * of the others are read again from their manifest when needed.
+	 */
+	static final int MAX_RESIDENT = 200;
+
+	// Keyed by identity, and dropped with their state.
+	private static final Cache<RevisionState, PackedProjects> RESIDENT =
+			CacheBuilder.newBuilder().weakKeys().maximumSize(MAX_RESIDENT)
+					.build();
+
+	// The manifest is kept in the job's ManifestStore, and only kept here if
+	// it couldn't be stored, or was saved by an older version.
+	private String manifest;
+	private String manifestDigest;
+	// Set when the state is created or read from its build, see getState.
+	private transient ManifestStore store;
 	private final String branch;
+	// The filter which selected the projects, null for all.
+	private String include;
+	private String exclude;
+	// The digest of the projects, computed once.
+	private String projectsDigest;
+	// Only set while reading a state saved by an older version, see
+	// readResolve.
+	private Map<String, ProjectState> projects;
 
 	private static Logger debug =
 		Logger.getLogger("hudson.plugins.repo.RevisionState");
@@ -72,64 +90,250 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	 */
 	public RevisionState(final String manifest, final String branch,
 			final PrintStream logger) {
-		this.manifest = manifest;
+		this(manifest, branch, null, logger);
+	}
+
+	/**
+	 * Creates a new RepoRevisionState holding only the projects selected by a
+	 * filter.
+	 *
+	 * @param manifest
+	 *            A string representation of the static manifest XML file
+	 * @param branch
+	 *            The branch of the manifest project
+	 * @param filter
+	 *            The filter selecting the projects, or null for all
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 */
+	RevisionState(final String manifest, final String branch,
+			final ProjectFilter filter, final PrintStream logger) {
+		this(manifest, branch, filter, null, logger);
+	}
+
+	/**
+	 * Creates a new RepoRevisionState holding only the projects selected by a
+	 * filter, whose manifest is kept in a store.
+	 *
+	 * @param manifest
+	 *            A string representation of the static manifest XML file
+	 * @param branch
+	 *            The branch of the manifest project
+	 * @param filter
+	 *            The filter selecting the projects, or null for all
+	 * @param store
+	 *            The store of the job's manifests, or null to keep the
+	 *            manifest in the state
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 */
+	RevisionState(final String manifest, final String branch,
+			final ProjectFilter filter, final ManifestStore store,
+			final PrintStream logger) {
 		this.branch = branch;
-		try {
-			final InputSource xmlSource = new InputSource();
-			xmlSource.setCharacterStream(new StringReader(manifest));
-			final Document doc =
-					DocumentBuilderFactory.newInstance().newDocumentBuilder()
-							.parse(xmlSource);
-
-			if (!doc.getDocumentElement().getNodeName().equals("manifest")) {
-				logger.println("Error - malformed manifest");
-				return;
+		this.store = store;
+		if (filter != null && !filter.isEmpty()) {
+			include = filter.getInclude();
+			exclude = filter.getExclude();
+		}
+		if (store != null) {
+			manifestDigest = store.store(manifest);
+		}
+		if (manifestDigest == null) {
+			this.manifest = manifest;
+			manifestDigest = ManifestStore.getDigest(manifest);
+		}
+		final PackedProjects packed =
+				parse(new StringReader(manifest), logger);
+		projectsDigest = packed.getDigest();
+		RESIDENT.put(this, packed);
+	}
+
+	/**
+	 * Creates a new RepoRevisionState holding only the projects selected by a
+	 * filter, from a manifest already in a store. The manifest is read back
+	 * from the store as a stream.
+	 *
+	 * @param store
+	 *            The store of the job's manifests
+	 * @param manifestDigest
+	 *            The digest of the manifest in the store
+	 * @param branch
+	 *            The branch of the manifest project
+	 * @param filter
+	 *            The filter selecting the projects, or null for all
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 */
+	RevisionState(final ManifestStore store, final String manifestDigest,
+			final String branch, final ProjectFilter filter,
+			final PrintStream logger) {
+		this.branch = branch;
+		this.store = store;
+		this.manifestDigest = manifestDigest;
+		if (filter != null && !filter.isEmpty()) {
+			include = filter.getInclude();
+			exclude = filter.getExclude();
+		}
+		final PackedProjects packed = parse(openManifest(), logger);
+		projectsDigest = packed.getDigest();
+		RESIDENT.put(this, packed);
+	}
+
+	/**
+	 * Creates a new RevisionState with the same manifest and projects as
+	 * another one, for a build which left the tree as the other's build did.
+	 *
+	 * @param other
+	 *            The state to copy
+	 */
+	RevisionState(final RevisionState other) {
+		branch = other.branch;
+		manifest = other.manifest;
+		manifestDigest = other.manifestDigest;
+		store = other.store;
+		include = other.include;
+		exclude = other.exclude;
+		projectsDigest = other.getProjectsDigest();
+		final PackedProjects packed = RESIDENT.getIfPresent(other);
+		if (packed != null) {
+			RESIDENT.put(this, packed);
+		}
+	}
+
+	/**
+	 * Converts the states saved by older versions, which held a map of
+	 * {@link ProjectState}s and the manifest. Their manifest stays in the
+	 * state, as a build being loaded mustn't write to the store. Their
+	 * projects are those of the whole manifest, so once evicted they are read
+	 * again from it like any other state's.
+	 */
+	private Object readResolve() {
+		if (manifestDigest == null && manifest != null) {
+			manifestDigest = ManifestStore.getDigest(manifest);
+		}
+		if (projects != null) {
+			final PackedProjects packed = new PackedProjects(projects);
+			if (projectsDigest == null) {
+				projectsDigest = packed.getDigest();
 			}
-			final NodeList projectNodes = doc.getElementsByTagName("project");
-			final int numProjects = projectNodes.getLength();
-			for (int i = 0; i < numProjects; i++) {
-				final Element projectElement = (Element) projectNodes.item(i);
-				String path =
-						Util.fixEmptyAndTrim(projectElement
-								.getAttribute("path"));
-				final String serverPath =
-						Util.fixEmptyAndTrim(projectElement
-								.getAttribute("name"));
-				final String revision =
-						Util.fixEmptyAndTrim(projectElement
-								.getAttribute("revision"));
-				if (path == null) {
-					// 'repo manifest -o' doesn't output a path if it is the
-					// same as the server path, even if the path is specified.
-					path = serverPath;
-				}
-				if (path != null && serverPath != null && revision != null) {
-					projects.put(path, new ProjectState(path, serverPath,
-							revision));
+			RESIDENT.put(this, packed);
+			projects = null;
+		}
+		return this;
+	}
+
+	// Reads the projects selected by the filter from a manifest, and closes
+	// it.
+	private PackedProjects parse(final Reader text, final PrintStream logger) {
+		final Map<String, ProjectState> sorted =
+				new TreeMap<String, ProjectState>();
+		if (text == null) {
+			debug.log(Level.WARNING, "The manifest of a build is missing");
+			return new PackedProjects(sorted);
+		}
+		final ProjectFilter filter = include != null || exclude != null
+				? new ProjectFilter(include, exclude) : null;
+		try {
+			for (final ProjectState project
+					: ManifestParser.parse(text)) {
+				final String path = project.getPath();
+				if (project.getRevision() != null
+						&& (filter == null || filter.matches(path))) {
+					sorted.put(path, project);
 					if (logger != null) {
 						logger.println("Added a project: " + path
-								+ " at revision: " + revision);
+								+ " at revision: " + project.getRevision());
 					}
 				}
 			}
-		} catch (final Exception e) {
-			logger.println(e);
-			return;
+		} catch (final IOException e) {
+			if (logger != null) {
+				logger.println(e);
+			}
+		} finally {
+			try {
+				text.close();
+			} catch (final IOException e) {
+				debug.log(Level.FINE, "Unable to close the manifest", e);
+			}
+		}
+		return new PackedProjects(sorted);
+	}
+
+	// Opens the manifest to read it as a stream, or returns null if it is
+	// missing.
+	private Reader openManifest() {
+		if (manifest != null) {
+			return new StringReader(manifest);
+		}
+		if (manifestDigest == null || store == null) {
+			debug.log(Level.WARNING, "The manifest " + manifestDigest
+					+ " was read without its build");
+			return null;
+		}
+		try {
+			return store.open(manifestDigest);
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to read manifest "
+					+ manifestDigest, e);
+			return null;
+		}
+	}
+
+	// Returns the projects, reading them from the manifest if they were
+	// evicted or not read yet.
+	private PackedProjects getPacked() {
+		PackedProjects packed = RESIDENT.getIfPresent(this);
+		if (packed == null) {
+			packed = parse(openManifest(), null);
+			RESIDENT.put(this, packed);
+		}
+		return packed;
+	}
+
+	/**
+	 * Returns true if the given project heads, one "path revision" line per
+	 * project, are exactly the projects of this state at their revisions.
+	 */
+	boolean isAt(final String heads) {
+		final PackedProjects packed = getPacked();
+		int count = 0;
+		for (final String line : heads.split("\n")) {
+			final String[] fields = line.trim().split(" ");
+			if (fields.length != 2) {
+				continue;
+			}
+			final int index = packed.indexOf(fields[0]);
+			if (index < 0 || !fields[1].equals(packed.getRevision(index))) {
+				return false;
+			}
+			count++;
 		}
+		return count == packed.size();
+	}
+
+	/**
+	 * Returns a digest of the path, name and revision of every project of
+	 * this state. Two states with the same projects have the same digest,
+	 * whatever their manifests look like.
+	 */
+	public String getProjectsDigest() {
+		if (projectsDigest == null) {
+			projectsDigest = getPacked().getDigest();
+		}
+		return projectsDigest;
 	}
 
 	@Override
 	public boolean equals(final Object obj) {
 		if (obj instanceof RevisionState) {
 			final RevisionState other = (RevisionState) obj;
-			if (branch == null) {
-				if (other.branch != null) {
-					return false;
-				}
-				return projects.equals(other.projects);
+			if (branch == null ? other.branch != null
+					: !branch.equals(other.branch)) {
+				return false;
 			}
-			return branch.equals(other.branch)
-					&& projects.equals(other.projects);
+			return getProjectsDigest().equals(other.getProjectsDigest());
 		}
 		return super.equals(obj);
 	}
@@ -137,8 +341,7 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	@Override
 	public int hashCode() {
 		return (branch != null ? branch.hashCode() : 0)
-			^ (manifest != null ? manifest.hashCode() : 0)
-			^ projects.hashCode();
+			^ getProjectsDigest().hashCode();
 	}
 
 	/**
@@ -150,10 +353,54 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	}
 
 	/**
-	 * Returns the static XML manifest for this repository state in String form.
+	 * Returns the repository state of a build, ready to load its manifest
+	 * from the job's store, or null if the build has none.
+	 */
+	static RevisionState getState(final Run<?, ?> build) {
+		final RevisionState state = build.getAction(RevisionState.class);
+		if (state != null && state.store == null) {
+			state.store = ManifestStore.of(build.getParent());
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the digest of the manifest of this state.
+	 */
+	String getManifestDigest() {
+		return manifestDigest;
+	}
+
+	/**
+	 * Returns the static XML manifest for this repository state in String form,
+	 * loading it from the {@link ManifestStore} if needed. Returns null if
+	 * the manifest is missing from the store.
 	 */
 	public String getManifest() {
-		return manifest;
+		if (manifest != null || manifestDigest == null) {
+			return manifest;
+		}
+		if (store == null) {
+			debug.log(Level.WARNING, "The manifest " + manifestDigest
+					+ " was read without its build");
+			return null;
+		}
+		return store.load(manifestDigest);
+	}
+
+	/**
+	 * Returns the number of projects in this repository state.
+	 */
+	public int getProjectCount() {
+		return getPacked().size();
+	}
+
+	/**
+	 * Returns the state of every project in this repository state, ordered
+	 * by path.
+	 */
+	public List<ProjectState> getProjects() {
+		return getPacked().getProjects();
 	}
 
 	/**
@@ -164,8 +411,9 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	 * @return the SHA1 revision of the repository.
 	 */
 	public String getRevision(final String path) {
-		ProjectState project = projects.get(path);
-		return project == null ? null : project.getRevision();
+		final PackedProjects packed = getPacked();
+		final int index = packed.indexOf(path);
+		return index < 0 ? null : packed.getRevision(index);
 	}
 
 	/**
@@ -185,23 +433,33 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 			debug.log(Level.FINE, "Everything is new");
 			return null;
 		}
-		final Set<String> keys = projects.keySet();
-		HashMap<String, ProjectState> previousStateCopy =
-				new HashMap<String, ProjectState>(previousState.projects);
-		for (final String key : keys) {
-			final ProjectState status = previousStateCopy.get(key);
-			if (status == null) {
+		// Both states are sorted by path, so they are walked side by side.
+		final PackedProjects current = getPacked();
+		final PackedProjects previous = previousState.getPacked();
+		final List<ProjectState> removed = new ArrayList<ProjectState>();
+		int i = 0;
+		int j = 0;
+		while (i < current.size() || j < previous.size()) {
+			final int order = i == current.size() ? 1
+					: j == previous.size() ? -1
+					: current.getPath(i).compareTo(previous.getPath(j));
+			if (order < 0) {
 				// This is a new project, just added to the manifest.
-				final ProjectState newProject = projects.get(key);
-				debug.log(Level.FINE, "New project: " + key);
-				changes.add(new ProjectState(newProject.getPath(), newProject
-						.getServerPath(), null));
-			} else if (!status.equals(projects.get(key))) {
-				changes.add(previousStateCopy.get(key));
+				debug.log(Level.FINE, "New project: " + current.getPath(i));
+				changes.add(current.getProject(i, false));
+				i++;
+			} else if (order > 0) {
+				removed.add(previous.getProject(j, true));
+				j++;
+			} else {
+				if (!current.isSame(i, previous, j)) {
+					changes.add(previous.getProject(j, true));
+				}
+				i++;
+				j++;
 			}
-			previousStateCopy.remove(key);
 		}
-		changes.addAll(previousStateCopy.values());
+		changes.addAll(removed);
 		return changes;
 	}
 }
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the projects which failed in the output of "repo sync". Depending on
+ * its version, repo reports failures as "error: Cannot fetch NAME",
+ * "error: Cannot checkout NAME", and/or as a "Failing repos:" list of paths
+ * at the end of the sync. The returned names and paths can both be passed to
+ * repo sync and repo forall.
+ */
+final class SyncFailures {
+
+	private static final Pattern CANNOT =
+			Pattern.compile("^error: Cannot (?:fetch|checkout|initialize)"
+					+ " (\\S+?)(?: from \\S+)?\\s*$");
+	private static final String FAILING_REPOS = "Failing repos:";
+
+	private SyncFailures() {
+	}
+
+	/**
+	 * Returns the names or paths of the projects which repo sync reported as
+	 * failed, without duplicates, in the order they were reported.
+	 *
+	 * @param output
+	 *            The combined output of repo sync
+	 */
+	static List<String> parse(final String output) {
+		final Set<String> failed = new LinkedHashSet<String>();
+		boolean inList = false;
+		for (final String rawLine : output.split("\n")) {
+			final String line = rawLine.trim();
+			if (inList) {
+				if (line.length() == 0 || line.startsWith("error:")
+						|| line.contains(" ")) {
+					inList = false;
+				} else {
+					failed.add(trimSlash(line));
+					continue;
+				}
+			}
+			if (line.startsWith(FAILING_REPOS)) {
+				inList = true;
+				continue;
+			}
+			final Matcher matcher = CANNOT.matcher(line);
+			if (matcher.matches()) {
+				failed.add(trimSlash(matcher.group(1)));
+			}
+		}
+		return new ArrayList<String>(failed);
+	}
+
+	private static String trimSlash(final String project) {
+		return project.endsWith("/")
+				? project.substring(0, project.length() - 1) : project;
+	}
+}
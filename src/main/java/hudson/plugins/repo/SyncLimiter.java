@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of syncs running at the same time on each node, and the
+ * number of fetch connections open at the same time to each git server.
+ * Waiting builds are served in arrival order. The limits are set in
+ * {@link RepoScm.DescriptorImpl}. A limit of 0 or less means no limit. Only
+ * repo sync is limited: a permit is released as soon as the sync is done.
+ */
+final class SyncLimiter {
+
+	// Semaphores by node name and by host, each with the limit it was
+	// created for. A semaphore is replaced when its limit changes, holders
+	// of the old one still release to it.
+	private static final Map<String, Limit> NODES =
+			new HashMap<String, Limit>();
+	private static final Map<String, Limit> HOSTS =
+			new HashMap<String, Limit>();
+
+	/**
+	 * The number of fetch connections counted for a sync which sets no
+	 * number of jobs, neither with -j nor in its manifest. repo then picks
+	 * its own default, which may be several jobs.
+	 */
+	static final int DEFAULT_JOBS = 4;
+
+	private SyncLimiter() {
+	}
+
+	/**
+	 * Waits until a sync may run on a node and enough fetch connections to
+	 * each of its git servers are free, then returns the permit which must be
+	 * released once the sync is done. The time spent waiting is logged.
+	 *
+	 * @param node
+	 *            The name of the node, empty for the master
+	 * @param nodeLimit
+	 *            The maximum number of syncs on a node
+	 * @param urls
+	 *            The URLs the sync fetches from, those of the manifest
+	 *            repository and of the remotes of the manifest. The hosts of
+	 *            the URLs are the git servers.
+	 * @param hostLimit
+	 *            The maximum number of fetch connections to a git server
+	 * @param connections
+	 *            The number of fetch connections the sync opens, its number
+	 *            of jobs, or 0 if repo picks it, see {@link #DEFAULT_JOBS}.
+	 *            As the sync may open all of them to any of its servers, they
+	 *            are taken from each server.
+	 * @param logger
+	 *            Where to log the wait
+	 */
+	static Permit acquire(final String node, final int nodeLimit,
+			final Collection<String> urls, final int hostLimit,
+			final int connections, final PrintStream logger)
+			throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		final Semaphore nodeSemaphore =
+				getSemaphore(NODES, Util.fixNull(node), nodeLimit);
+		// Always taken in the same order, so that two syncs sharing servers
+		// can't each hold one the other waits for.
+		final Set<String> hosts = new TreeSet<String>();
+		for (final String url : urls) {
+			final String host = getHost(url);
+			if (host != null) {
+				hosts.add(host);
+			}
+		}
+		final List<Semaphore> hostSemaphores = new ArrayList<Semaphore>();
+		for (final String host : hosts) {
+			final Semaphore semaphore = getSemaphore(HOSTS, host, hostLimit);
+			if (semaphore != null) {
+				hostSemaphores.add(semaphore);
+			}
+		}
+		// A sync can't wait for more connections than a server allows.
+		final int jobs = connections > 0 ? connections : DEFAULT_JOBS;
+		final int permits = Math.max(1, Math.min(jobs, hostLimit));
+
+		if (nodeSemaphore != null) {
+			nodeSemaphore.acquire();
+		}
+		final Permit permit = new Permit(nodeSemaphore, permits);
+		try {
+			for (final Semaphore semaphore : hostSemaphores) {
+				semaphore.acquire(permits);
+				permit.hosts.add(semaphore);
+			}
+		} catch (final InterruptedException e) {
+			permit.release();
+			throw e;
+		}
+		final long waited = System.currentTimeMillis() - start;
+		if (waited >= 1000) {
+			logger.println("Waited " + Util.getTimeSpanString(waited)
+					+ " for a free sync slot");
+		}
+		return permit;
+	}
+
+	/**
+	 * Returns the host of a git URL, or null if it has none. Both URLs and
+	 * scp-like "user@host:path" addresses are understood.
+	 */
+	static String getHost(final String url) {
+		if (url == null) {
+			return null;
+		}
+		if (url.contains("://")) {
+			try {
+				return new URI(url).getHost();
+			} catch (final URISyntaxException e) {
+				return null;
+			}
+		}
+		final int colon = url.indexOf(':');
+		if (colon <= 0 || url.lastIndexOf('/', colon) >= 0) {
+			// A local path
+			return null;
+		}
+		final String host = url.substring(0, colon);
+		return host.substring(host.indexOf('@') + 1);
+	}
+
+	private static synchronized Semaphore getSemaphore(
+			final Map<String, Limit> limits, final String key,
+			final int limit) {
+		if (limit <= 0) {
+			return null;
+		}
+		Limit existing = limits.get(key);
+		if (existing == null || existing.limit != limit) {
+			existing = new Limit(limit);
+			limits.put(key, existing);
+		}
+		return existing.semaphore;
+	}
+
+	/**
+	 * A fair semaphore and the limit it was created for.
+	 */
+	private static final class Limit {
+		private final int limit;
+		private final Semaphore semaphore;
+
+		private Limit(final int limit) {
+			this.limit = limit;
+			this.semaphore = new Semaphore(limit, true);
+		}
+	}
+
+	/**
+	 * The right to run a sync, returned by {@link SyncLimiter#acquire}.
+	 */
+	static final class Permit {
+		private final Semaphore node;
+		private final List<Semaphore> hosts = new ArrayList<Semaphore>();
+		private final int connections;
+		private boolean released;
+
+		private Permit(final Semaphore node, final int connections) {
+			this.node = node;
+			this.connections = connections;
+		}
+
+		/**
+		 * Gives the sync slot and the fetch connections back. Only the first
+		 * call has an effect.
+		 */
+		synchronized void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			for (final Semaphore host : hosts) {
+				host.release(connections);
+			}
+			if (node != null) {
+				node.release();
+			}
+		}
+	}
+}
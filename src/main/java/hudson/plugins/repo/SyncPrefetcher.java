@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.model.TopLevelItem;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the network half of a sync ("repo sync --network-only") in a job's
+ * workspace ahead of the build, typically while the build sits in its quiet
+ * period after a webhook. A successful prefetch is recorded in .repo with the
+ * manifest it fetched for, and the checkout of the next build then only needs
+ * "repo sync --local-only", unless the manifest has moved on since.
+ */
+final class SyncPrefetcher {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.SyncPrefetcher");
+
+	/**
+	 * The file in .repo which records the last successful prefetch: its time,
+	 * then the manifest it fetched for, see {@link #getManifest}.
+	 */
+	static final String MARKER = "jenkins-prefetch";
+
+	/**
+	 * A prefetch older than this is ignored by checkout.
+	 */
+	static final long MAX_AGE = 30 * 60 * 1000L;
+
+	// Daemon threads, which don't hold Jenkins up when it shuts down.
+	private static final ExecutorService QUEUE =
+			Executors.newCachedThreadPool(new ThreadFactory() {
+				private final ThreadFactory daemons =
+						new DaemonThreadFactory();
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = daemons.newThread(runnable);
+					thread.setName("Repo prefetch " + count.incrementAndGet());
+					return thread;
+				}
+			});
+	private static final Set<String> PENDING = new HashSet<String>();
+
+	private SyncPrefetcher() {
+	}
+
+	/**
+	 * Queues a prefetch in the workspace of a job on the node which last
+	 * built it. Nothing is done if the job is building, has never been
+	 * built, or its workspace hasn't been initialized by repo.
+	 *
+	 * @param job
+	 *            A job using {@link RepoScm}
+	 */
+	static void prefetchLater(final AbstractProject<?, ?> job) {
+		if (!(job.getScm() instanceof RepoScm)
+				|| !(job instanceof TopLevelItem)) {
+			return;
+		}
+		final RepoScm scm = (RepoScm) job.getScm();
+		final Node node = job.getLastBuiltOn();
+		if (node == null || job.isBuilding()) {
+			return;
+		}
+		final FilePath root = node.getWorkspaceFor((TopLevelItem) job);
+		if (root == null) {
+			return;
+		}
+		final FilePath workspace = scm.getDestinationDir() != null
+				? root.child(scm.getDestinationDir()) : root;
+		final String key = getKey(node, workspace);
+		synchronized (PENDING) {
+			if (!PENDING.add(key)) {
+				return;
+			}
+		}
+		QUEUE.execute(new Runnable() {
+			public void run() {
+				synchronized (PENDING) {
+					PENDING.remove(key);
+				}
+				try {
+					prefetch(scm, job, node, workspace);
+				} catch (final Exception e) {
+					debug.log(Level.WARNING, "Prefetch of "
+							+ job.getFullDisplayName() + " failed", e);
+				}
+			}
+		});
+	}
+
+	private static void prefetch(final RepoScm scm,
+			final AbstractProject<?, ?> job, final Node node,
+			final FilePath workspace)
+			throws IOException, InterruptedException {
+		// A checkout waits for the prefetch, which is what it is for.
+		final ReentrantLock lock = WorkspaceLock.get(node, workspace);
+		lock.lockInterruptibly();
+		try {
+			if (job.isBuilding()
+					|| !workspace.child(".repo").child("manifests")
+							.isDirectory()) {
+				return;
+			}
+			final LogTaskListener listener =
+					new LogTaskListener(debug, Level.FINE);
+			final long start = System.currentTimeMillis();
+			// The sync limits are applied by the prefetch, with the number
+			// of jobs the sync actually uses.
+			final Launcher launcher = node.createLauncher(listener);
+			if (scm.prefetch(node, launcher, workspace,
+					listener.getLogger())) {
+				// repo sync --network-only doesn't move the manifest, so
+				// this is the manifest the projects were fetched for.
+				final String manifest = getManifest(launcher, workspace);
+				if (manifest == null) {
+					return;
+				}
+				mark(workspace, manifest);
+				debug.log(Level.INFO, "Prefetched "
+						+ job.getFullDisplayName() + " on "
+						+ node.getNodeName() + " in "
+						+ (System.currentTimeMillis() - start) + "ms");
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the manifest of a repo client: the revision of the manifest
+	 * project and a digest of the local manifest, or null if the revision
+	 * can't be read.
+	 *
+	 * @param launcher
+	 *            A launcher for the node holding the workspace
+	 * @param workspace
+	 *            The root of the repo client
+	 */
+	static String getManifest(final Launcher launcher,
+			final FilePath workspace)
+			throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode = launcher.launch().stdout(output)
+				.pwd(workspace.child(".repo").child("manifests"))
+				.cmds("git", "rev-parse", "HEAD").join();
+		if (returnCode != 0) {
+			return null;
+		}
+		final FilePath local =
+				workspace.child(".repo").child("local_manifest.xml");
+		return output.toString().trim() + " " + Util.getDigestOf(
+				local.exists() ? local.readToString() : "");
+	}
+
+	/**
+	 * Records a successful prefetch in a workspace.
+	 *
+	 * @param manifest
+	 *            The manifest fetched for, see {@link #getManifest}
+	 */
+	static void mark(final FilePath workspace, final String manifest)
+			throws IOException, InterruptedException {
+		workspace.child(".repo").child(MARKER).write(
+				System.currentTimeMillis() + "\n" + manifest + "\n", null);
+	}
+
+	/**
+	 * Removes the record of a prefetch and returns its manifest, or null if
+	 * there is no record, or it is too old or doesn't name a manifest. A
+	 * prefetch is used by one checkout only, which takes the record under
+	 * the {@link WorkspaceLock}. The checkout must only use the prefetch if
+	 * its own manifest is the same, see {@link #getManifest}.
+	 */
+	static String takeMark(final FilePath workspace)
+			throws IOException, InterruptedException {
+		final FilePath marker = workspace.child(".repo").child(MARKER);
+		if (!marker.exists()) {
+			return null;
+		}
+		final String[] recorded = marker.readToString().split("\n");
+		marker.delete();
+		if (recorded.length < 2) {
+			return null;
+		}
+		long time;
+		try {
+			time = Long.parseLong(recorded[0].trim());
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+		if (System.currentTimeMillis() - time >= MAX_AGE) {
+			return null;
+		}
+		return recorded[1].trim();
+	}
+
+	private static String getKey(final Node node, final FilePath workspace) {
+		return node.getNodeName() + ":" + workspace.getRemote();
+	}
+}
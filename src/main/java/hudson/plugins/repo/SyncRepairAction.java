@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the projects which failed to sync during a build and had to be
+ * repaired. The page of the action also counts the repairs of each project
+ * over the recent builds of the job, to make chronic offenders visible.
+ */
+public class SyncRepairAction implements Action {
+
+	/**
+	 * The number of builds, this one included, looked at when counting
+	 * repairs.
+	 */
+	static final int HISTORY = 30;
+
+	private final AbstractBuild<?, ?> build;
+	private final List<String> projects;
+
+	/**
+	 * Creates the action.
+	 *
+	 * @param build
+	 *            The build during which the projects were repaired
+	 * @param projects
+	 *            The names or paths of the repaired projects
+	 */
+	SyncRepairAction(final AbstractBuild<?, ?> build,
+			final List<String> projects) {
+		this.build = build;
+		this.projects = new ArrayList<String>(projects);
+	}
+
+	/**
+	 * Returns the build during which the projects were repaired.
+	 */
+	public AbstractBuild<?, ?> getBuild() {
+		return build;
+	}
+
+	/**
+	 * Returns the number of builds looked at when counting repairs, see
+	 * {@link #HISTORY}.
+	 */
+	public int getHistory() {
+		return HISTORY;
+	}
+
+	/**
+	 * Returns the names or paths of the projects repaired in this build.
+	 */
+	public List<String> getProjects() {
+		return projects;
+	}
+
+	/**
+	 * Returns, for every project repaired in this build or one of the
+	 * previous builds, the number of those builds in which it was repaired.
+	 */
+	public Map<String, Integer> getRecentRepairs() {
+		final Map<String, Integer> counts = new TreeMap<String, Integer>();
+		AbstractBuild<?, ?> b = build;
+		for (int i = 0; i < HISTORY && b != null; i++) {
+			final SyncRepairAction action = b.getAction(SyncRepairAction.class);
+			if (action != null) {
+				for (final String project : action.projects) {
+					final Integer count = counts.get(project);
+					counts.put(project, count == null ? 1 : count + 1);
+				}
+			}
+			b = b.getPreviousBuild();
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the icon shown in the build's side panel.
+	 */
+	public String getIconFileName() {
+		return "notepad.gif";
+	}
+
+	/**
+	 * Returns the name shown in the build's side panel.
+	 */
+	public String getDisplayName() {
+		return "Repo Sync Repairs";
+	}
+
+	/**
+	 * Returns the URL of the action's page, relative to the build.
+	 */
+	public String getUrlName() {
+		return "repo-repairs";
+	}
+}
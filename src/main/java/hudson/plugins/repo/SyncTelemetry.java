@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The recent full syncs of one node, used to pick the number of sync jobs
+ * when they are set to automatic. Each sample records the jobs used and the
+ * number of projects synced per second. Starting from the node's CPU count, the
+ * setting with the best average throughput is used, a higher setting is tried
+ * once in a while, and the setting is halved when the last sync was much
+ * slower than usual, which usually means the git server is busy. Samples are
+ * kept by {@link RepoScm.DescriptorImpl}.
+ */
+public class SyncTelemetry {
+
+	/**
+	 * The number of samples kept per node.
+	 */
+	static final int HISTORY = 20;
+
+	// More jobs than this many per core rarely help, even though syncing is
+	// mostly waiting on the network.
+	private static final int JOBS_PER_CORE = 4;
+
+	private final String node;
+	// Copied on write, so the descriptor can be saved while a build records
+	// a sample.
+	private final List<Sample> samples = new CopyOnWriteArrayList<Sample>();
+
+	/**
+	 * Creates an empty history.
+	 *
+	 * @param node
+	 *            The name of the node, empty for the master
+	 */
+	SyncTelemetry(final String node) {
+		this.node = node;
+	}
+
+	/**
+	 * Returns the name of the node, empty for the master.
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the recorded samples, oldest first.
+	 */
+	public synchronized List<Sample> getSamples() {
+		return new ArrayList<Sample>(samples);
+	}
+
+	/**
+	 * Records a successful sync. The oldest sample is dropped once there are
+	 * {@link #HISTORY} of them.
+	 *
+	 * @param jobs
+	 *            The number of sync jobs used
+	 * @param millis
+	 *            The duration of the sync
+	 * @param projects
+	 *            The number of projects synced
+	 */
+	synchronized void record(final int jobs, final long millis,
+			final int projects) {
+		samples.add(new Sample(jobs, millis, projects));
+		while (samples.size() > HISTORY) {
+			samples.remove(0);
+		}
+	}
+
+	/**
+	 * Returns the number of sync jobs to use for the next sync.
+	 *
+	 * @param cores
+	 *            The number of processors of the node
+	 * @param ceiling
+	 *            The maximum number of jobs, set by the administrator
+	 */
+	synchronized int pickJobs(final int cores, final int ceiling) {
+		final int max = Math.max(1, Math.min(ceiling, cores * JOBS_PER_CORE));
+		if (samples.isEmpty()) {
+			return clamp(cores, max);
+		}
+
+		final Map<Integer, double[]> totals =
+				new LinkedHashMap<Integer, double[]>();
+		for (final Sample sample : samples) {
+			double[] total = totals.get(sample.jobs);
+			if (total == null) {
+				total = new double[2];
+				totals.put(sample.jobs, total);
+			}
+			total[0] += sample.getThroughput();
+			total[1]++;
+		}
+		int best = -1;
+		double bestThroughput = -1;
+		for (final Map.Entry<Integer, double[]> entry : totals.entrySet()) {
+			final double average = entry.getValue()[0] / entry.getValue()[1];
+			if (average > bestThroughput) {
+				best = entry.getKey();
+				bestThroughput = average;
+			}
+		}
+
+		final Sample last = samples.get(samples.size() - 1);
+		final double[] lastTotal = totals.get(last.jobs);
+		if (last.jobs > 1
+				&& last.getThroughput() * 2 < lastTotal[0] / lastTotal[1]) {
+			return clamp(last.jobs / 2, max);
+		}
+		final int higher = Math.min(max, best + Math.max(1, best / 2));
+		if (higher > best && !totals.containsKey(higher)) {
+			return higher;
+		}
+		return clamp(best, max);
+	}
+
+	private static int clamp(final int jobs, final int max) {
+		return Math.max(1, Math.min(jobs, max));
+	}
+
+	/**
+	 * Returns the number of processors of the node a launcher runs on, or 1
+	 * if it can't be found.
+	 */
+	static int getCores(final Launcher launcher)
+			throws InterruptedException {
+		final VirtualChannel channel = launcher.getChannel();
+		if (channel == null) {
+			return 1;
+		}
+		try {
+			return channel.call(new CoreCount());
+		} catch (final IOException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Counts the processors of a node.
+	 */
+	private static final class CoreCount
+			implements Callable<Integer, RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		public Integer call() {
+			return Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * One recorded sync.
+	 */
+	public static class Sample {
+		private final int jobs;
+		private final long millis;
+		private final int projects;
+
+		/**
+		 * Creates a sample.
+		 */
+		Sample(final int jobs, final long millis, final int projects) {
+			this.jobs = jobs;
+			this.millis = millis;
+			this.projects = projects;
+		}
+
+		/**
+		 * Returns the number of sync jobs used.
+		 */
+		public int getJobs() {
+			return jobs;
+		}
+
+		/**
+		 * Returns the duration of the sync in milliseconds.
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Returns the number of projects synced.
+		 */
+		public int getProjects() {
+			return projects;
+		}
+
+		/**
+		 * Returns the number of projects synced per second.
+		 */
+		public double getThroughput() {
+			return projects * 1000.0 / Math.max(1, millis);
+		}
+	}
+}
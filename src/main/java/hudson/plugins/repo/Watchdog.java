@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Kills the processes of a checkout which run for too long. Each phase of
+ * the checkout has its own timeout, and any process which produces no output
+ * for the idle timeout is considered hung. Commands which are expected to be
+ * silent for a long time, those run quietly and the network fetches, are
+ * only limited by the timeout of their phase. A killed process tree returns a
+ * failure, so the caller retries or fails as it does for any other failure,
+ * and the build log tells which command was killed, in which directory and
+ * after what output.
+ */
+final class Watchdog {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.Watchdog");
+
+	/**
+	 * The phases of a checkout, each with its own timeout.
+	 */
+	enum Phase {
+		/** repo init and the update of the manifest project. */
+		INIT,
+		/** repo sync and the mirror updates. */
+		SYNC,
+		/** repo forall and the per-project checkouts. */
+		FORALL,
+		/** repo manifest and repo list. */
+		MANIFEST,
+		/** The git log and fetch commands of the change log. */
+		CHANGELOG
+	}
+
+	// How often running processes are checked.
+	private static final long CHECK_INTERVAL = 10 * 1000L;
+	private static final int MAX_LINE = 200;
+	// A daemon thread, so that it never holds up the shutdown of Jenkins.
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(
+					new DaemonThreadFactory());
+
+	private final Map<Phase, Long> timeouts;
+	private final long idleTimeout;
+	private final long checkInterval;
+	private final PrintStream logger;
+	private volatile Phase phase;
+
+	/**
+	 * Creates a watchdog.
+	 *
+	 * @param timeouts
+	 *            The timeout of each phase in milliseconds. Phases which are
+	 *            missing, or have a timeout of 0 or less, are not limited.
+	 * @param idleTimeout
+	 *            The time in milliseconds a process may run without output,
+	 *            or 0 for no limit
+	 * @param logger
+	 *            The build log
+	 */
+	Watchdog(final Map<Phase, Long> timeouts, final long idleTimeout,
+			final PrintStream logger) {
+		this(timeouts, idleTimeout, CHECK_INTERVAL, logger);
+	}
+
+	/**
+	 * Creates a watchdog which checks its processes at the given interval
+	 * in milliseconds.
+	 */
+	Watchdog(final Map<Phase, Long> timeouts, final long idleTimeout,
+			final long checkInterval, final PrintStream logger) {
+		this.timeouts = new EnumMap<Phase, Long>(Phase.class);
+		this.timeouts.putAll(timeouts);
+		this.idleTimeout = idleTimeout;
+		this.checkInterval = checkInterval;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the phase of the processes launched from now on.
+	 */
+	void setPhase(final Phase phase) {
+		this.phase = phase;
+	}
+
+	/**
+	 * Returns the timeout of a phase in milliseconds, 0 for no limit.
+	 */
+	long getTimeout(final Phase of) {
+		final Long timeout = of != null ? timeouts.get(of) : null;
+		return timeout != null && timeout > 0 ? timeout : 0;
+	}
+
+	/**
+	 * Returns true if a command may legitimately print nothing for a long
+	 * time, as it runs quietly. Network fetches print their progress, and
+	 * are the commands most likely to hang, so they are watched as any
+	 * other. Commands run by repo forall are given as a single argument, so
+	 * each argument is split into words.
+	 */
+	static boolean isQuiet(final List<String> cmds) {
+		for (final String arg : cmds) {
+			for (final String word : arg.trim().split("\\s+")) {
+				if (word.equals("-q") || word.equals("--quiet")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Launches a process and watches it under the current phase.
+	 *
+	 * @param outer
+	 *            The launcher which actually starts the process
+	 * @param starter
+	 *            The process to start
+	 */
+	Proc launch(final Launcher outer, final ProcStarter starter)
+			throws IOException {
+		final Phase current = phase;
+		final long timeout = getTimeout(current);
+		final long idle = isQuiet(starter.cmds()) ? 0 : idleTimeout;
+		if (timeout <= 0 && idle <= 0) {
+			return outer.launch(starter);
+		}
+		final WatchedProc watched = new WatchedProc(current, timeout, idle,
+				Util.join(starter.cmds(), " "), starter.pwd());
+		// Without an output stream, the output is read by the caller from
+		// the process, and is watched there.
+		if (starter.stdout() != null) {
+			starter.stdout(watched.watch(starter.stdout()));
+		}
+		if (starter.stderr() != null) {
+			starter.stderr(watched.watch(starter.stderr()));
+		}
+		watched.start(outer.launch(starter));
+		return watched;
+	}
+
+	/**
+	 * A process killed once it runs past its timeout or stops producing
+	 * output.
+	 */
+	private final class WatchedProc extends Proc implements Runnable {
+
+		private final Phase phase;
+		private final long timeout;
+		private final long idle;
+		private final String command;
+		private final FilePath pwd;
+		private final long started = System.currentTimeMillis();
+		private final StringBuilder line = new StringBuilder();
+		private volatile long lastOutput = started;
+		private volatile String lastLine;
+		private volatile String killed;
+		private Proc proc;
+		private ScheduledFuture<?> check;
+
+		private WatchedProc(final Phase phase, final long timeout,
+				final long idle, final String command, final FilePath pwd) {
+			this.phase = phase;
+			this.timeout = timeout;
+			this.idle = idle;
+			this.command = command;
+			this.pwd = pwd;
+		}
+
+		private OutputStream watch(final OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(final int b) throws IOException {
+					out.write(b);
+					seen(b);
+				}
+
+				@Override
+				public void write(final byte[] b, final int off,
+						final int len) throws IOException {
+					out.write(b, off, len);
+					for (int i = off; i < off + len; i++) {
+						seen(b[i]);
+					}
+				}
+			};
+		}
+
+		// Keeps the last line of output, which usually names the project
+		// being worked on.
+		private void seen(final int b) {
+			lastOutput = System.currentTimeMillis();
+			synchronized (line) {
+				if (b == '\n' || b == '\r') {
+					if (line.toString().trim().length() > 0) {
+						lastLine = line.toString().trim();
+					}
+					line.setLength(0);
+				} else if (line.length() < MAX_LINE) {
+					line.append((char) (b & 0xff));
+				}
+			}
+		}
+
+		private void start(final Proc started) {
+			this.proc = started;
+			check = TIMER.scheduleWithFixedDelay(this, checkInterval,
+					checkInterval, TimeUnit.MILLISECONDS);
+		}
+
+		public void run() {
+			final long now = System.currentTimeMillis();
+			if (timeout > 0 && now - started > timeout) {
+				killed = "took longer than the "
+						+ phase.name().toLowerCase() + " timeout of "
+						+ Util.getTimeSpanString(timeout);
+			} else if (idle > 0 && now - lastOutput > idle) {
+				killed = "produced no output for "
+						+ Util.getTimeSpanString(now - lastOutput);
+			} else {
+				return;
+			}
+			check.cancel(false);
+			debug.log(Level.WARNING, "Killing \"" + command + "\" in "
+					+ pwd + ", which " + killed);
+			try {
+				proc.kill();
+			} catch (final Exception e) {
+				debug.log(Level.WARNING, "Unable to kill " + command, e);
+			}
+		}
+
+		@Override
+		public boolean isAlive() throws IOException, InterruptedException {
+			return proc.isAlive();
+		}
+
+		@Override
+		public void kill() throws IOException, InterruptedException {
+			proc.kill();
+		}
+
+		@Override
+		public int join() throws IOException, InterruptedException {
+			final int returnCode;
+			try {
+				returnCode = proc.join();
+			} finally {
+				check.cancel(false);
+			}
+			if (killed != null) {
+				logger.println("Killed \"" + command + "\" in "
+						+ (pwd != null ? pwd.getRemote() : ".")
+						+ ", which " + killed
+						+ (lastLine != null
+								? ". Its last output was: " + lastLine : ""));
+			}
+			return returnCode;
+		}
+
+		@Override
+		public InputStream getStdout() {
+			final InputStream in = proc.getStdout();
+			if (in == null) {
+				return null;
+			}
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					final int b = in.read();
+					if (b >= 0) {
+						seen(b);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(final byte[] b, final int off,
+						final int len) throws IOException {
+					final int read = in.read(b, off, len);
+					for (int i = off; i < off + read; i++) {
+						seen(b[i]);
+					}
+					return read;
+				}
+			};
+		}
+
+		@Override
+		public InputStream getStderr() {
+			return proc.getStderr();
+		}
+
+		@Override
+		public OutputStream getStdin() {
+			return proc.getStdin();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks of the repo workspaces, held while a workspace is used outside
+ * of a build: by a prefetch, a maintenance or a snapshot. A checkout waits
+ * for them, telling why in the build log, and can be aborted while it waits.
+ * The maintenance and the snapshot, which may take long, only run while no
+ * build of the job is queued or running, and never wait for the lock.
+ */
+final class WorkspaceLock {
+
+	/**
+	 * How often a checkout waiting for a workspace logs that it still waits.
+	 */
+	static final long LOG_INTERVAL = 60 * 1000L;
+
+	private static final ConcurrentMap<String, ReentrantLock> LOCKS =
+			new ConcurrentHashMap<String, ReentrantLock>();
+
+	private WorkspaceLock() {
+	}
+
+	/**
+	 * Returns the lock of a workspace.
+	 *
+	 * @param node
+	 *            The node holding the workspace
+	 * @param workspace
+	 *            The root of the repo client
+	 */
+	static ReentrantLock get(final Node node, final FilePath workspace) {
+		return get(node.getNodeName() + ":" + workspace.getRemote());
+	}
+
+	/**
+	 * Returns the lock of a workspace by its key, the node name and the path
+	 * of the workspace.
+	 */
+	static ReentrantLock get(final String key) {
+		final ReentrantLock lock = new ReentrantLock();
+		final ReentrantLock existing = LOCKS.putIfAbsent(key, lock);
+		return existing != null ? existing : lock;
+	}
+
+	/**
+	 * Takes the lock of a workspace for a checkout, waiting for the
+	 * background work holding it. The wait is logged in the build log.
+	 *
+	 * @param workspace
+	 *            The path of the workspace, for the log
+	 * @param interval
+	 *            How often to log the wait, in milliseconds
+	 * @throws InterruptedException
+	 *             if the build is aborted while it waits.
+	 */
+	static void lock(final ReentrantLock lock, final String workspace,
+			final long interval, final PrintStream logger)
+			throws InterruptedException {
+		if (lock.tryLock()) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		logger.println("Waiting for the maintenance or prefetch of workspace "
+				+ workspace);
+		while (!lock.tryLock(interval, TimeUnit.MILLISECONDS)) {
+			logger.println("Still waiting for workspace " + workspace
+					+ " after " + Util.getTimeSpanString(
+							System.currentTimeMillis() - start));
+		}
+	}
+
+	/**
+	 * Takes the lock of a workspace for background work which may take
+	 * long, if it is free and no build of the job is queued or running.
+	 *
+	 * @return the lock to release, or null if the work must be skipped.
+	 */
+	static ReentrantLock tryLockIdle(final AbstractProject<?, ?> job,
+			final Node node, final FilePath workspace) {
+		if (job.isBuilding() || job.isInQueue()) {
+			return null;
+		}
+		final ReentrantLock lock = get(node, workspace);
+		if (!lock.tryLock()) {
+			return null;
+		}
+		// A build may have been scheduled in the meantime.
+		if (job.isBuilding() || job.isInQueue()) {
+			lock.unlock();
+			return null;
+		}
+		return lock;
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps long-lived repo workspaces fast. Between builds, the workspace of
+ * every job using {@link RepoScm} on the node which last built it is
+ * maintained once per configured interval: the projects dropped from the
+ * manifest since they were synced are deleted, and every project is garbage
+ * collected and repacked by git gc. The space reclaimed is logged, and the
+ * next checkout reports how long it took compared to the one before the
+ * maintenance. Managed mirrors are collected by {@link MirrorRefresher}.
+ * The {@link WorkspaceSnapshot} of a job seeding from snapshots is also
+ * written here, outside of its builds, when missing or out of date.
+ */
+@Extension
+public class WorkspaceMaintenance extends AsyncPeriodicWork {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.WorkspaceMaintenance");
+
+	/**
+	 * The file in .repo recording the last maintenance: its time, the space
+	 * it reclaimed in kilobytes, the number of projects it pruned and the
+	 * duration of the last checkout before it, one per line. The last line is
+	 * cleared once the next checkout reported on it.
+	 */
+	static final String MARKER = "jenkins-maintenance";
+
+	/**
+	 * The file in .repo recording the duration of the last checkout.
+	 */
+	static final String CHECKOUT_TIME = "jenkins-checkout-time";
+
+	/**
+	 * Creates the periodic task. Called by Jenkins.
+	 */
+	public WorkspaceMaintenance() {
+		super("Repo workspace maintenance");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return HOUR;
+	}
+
+	@Override
+	protected void execute(final TaskListener listener)
+			throws IOException, InterruptedException {
+		final RepoScm.DescriptorImpl descriptor =
+				Hudson.getInstance().getDescriptorByType(
+						RepoScm.DescriptorImpl.class);
+		final int days = descriptor.getMaintenanceInterval();
+		for (final AbstractProject<?, ?> job
+				: Hudson.getInstance().getAllItems(AbstractProject.class)) {
+			if (!(job.getScm() instanceof RepoScm)
+					|| !(job instanceof TopLevelItem)) {
+				continue;
+			}
+			final Node node = job.getLastBuiltOn();
+			if (node == null || node.toComputer() == null
+					|| node.toComputer().isOffline()) {
+				continue;
+			}
+			final FilePath root = node.getWorkspaceFor((TopLevelItem) job);
+			if (root == null) {
+				continue;
+			}
+			final RepoScm scm = (RepoScm) job.getScm();
+			final FilePath workspace = scm.getDestinationDir() != null
+					? root.child(scm.getDestinationDir()) : root;
+			try {
+				if (days > 0) {
+					maintain(scm, job, node, workspace, days * DAY, listener);
+				}
+				// A workspace using a reference only holds the objects
+				// missing from it, and would make an incomplete snapshot.
+				if (scm.isSeedFromSnapshot() && scm.getMirrorDir() == null
+						&& !scm.isManagedMirror()) {
+					snapshot(scm, job, node, workspace, listener);
+				}
+			} catch (final IOException e) {
+				debug.log(Level.WARNING, "Maintenance of "
+						+ job.getFullDisplayName() + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Maintains one workspace, unless it was maintained less than the
+	 * interval ago, a build of its job is queued or running, or the
+	 * workspace is in use. Holds the {@link WorkspaceLock}, so that
+	 * checkouts and prefetches wait for the maintenance.
+	 */
+	private static void maintain(final RepoScm scm,
+			final AbstractProject<?, ?> job, final Node node,
+			final FilePath workspace, final long interval,
+			final TaskListener listener)
+			throws IOException, InterruptedException {
+		final ReentrantLock lock =
+				WorkspaceLock.tryLockIdle(job, node, workspace);
+		if (lock == null) {
+			return;
+		}
+		try {
+			final FilePath marker = workspace.child(".repo").child(MARKER);
+			if (!workspace.child(".repo").child("manifests")
+							.isDirectory()
+					|| System.currentTimeMillis()
+							- readLong(marker, 0) < interval) {
+				return;
+			}
+			final PrintStream logger = listener.getLogger();
+			final Launcher launcher = node.createLauncher(listener);
+			final long start = System.currentTimeMillis();
+			final long before = getUsage(launcher, workspace);
+
+			final int pruned = prune(launcher, workspace,
+					scm.getDescriptor().getExecutable(), logger);
+			final int returnCode = launcher.launch().stdout(logger)
+					.pwd(workspace).cmds(scm.getDescriptor().getExecutable(),
+							"forall", "-c", "git gc --quiet").join();
+			if (returnCode != 0) {
+				debug.log(Level.WARNING, "git gc failed in " + workspace
+						+ " (exit code " + returnCode + ")");
+			}
+
+			final long reclaimed =
+					Math.max(0, before - getUsage(launcher, workspace));
+			final FilePath checkoutTime =
+					workspace.child(".repo").child(CHECKOUT_TIME);
+			marker.write(System.currentTimeMillis() + "\n" + reclaimed + "\n"
+					+ pruned + "\n" + readLong(checkoutTime, 0) + "\n", null);
+			debug.log(Level.INFO, "Maintained " + workspace + " on "
+					+ node.getDisplayName() + " in "
+					+ Util.getTimeSpanString(System.currentTimeMillis() - start)
+					+ ": pruned " + pruned + " projects, reclaimed "
+					+ reclaimed / 1024 + " MB");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the snapshot of a job's manifest from its workspace if the
+	 * snapshot is missing or out of date, unless a build of the job is
+	 * queued or running or the workspace is in use. Holds the
+	 * {@link WorkspaceLock}, so that checkouts and prefetches wait for the
+	 * snapshot to be written.
+	 */
+	private static void snapshot(final RepoScm scm,
+			final AbstractProject<?, ?> job, final Node node,
+			final FilePath workspace, final TaskListener listener)
+			throws IOException, InterruptedException {
+		final Launcher launcher = node.createLauncher(listener);
+		final FilePath snapshot = WorkspaceSnapshot.locate(node, launcher,
+				scm.getDescriptor().getSnapshotDir(), scm.getManifestKey());
+		if (snapshot == null || !WorkspaceSnapshot.isStale(snapshot)) {
+			return;
+		}
+		final ReentrantLock lock =
+				WorkspaceLock.tryLockIdle(job, node, workspace);
+		if (lock == null) {
+			return;
+		}
+		try {
+			if (workspace.child(".repo").child("manifests").isDirectory()) {
+				WorkspaceSnapshot.refresh(snapshot, workspace, launcher,
+						listener.getLogger());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the git directories, and working trees, of the projects which
+	 * are in the workspace but no longer in its manifest. The projects are
+	 * read from "repo list --all", which lists every project of the manifest
+	 * whether it was synced or not, so projects left out by the include and
+	 * exclude patterns or by a pull request build are kept. Working trees
+	 * holding another project are kept too.
+	 *
+	 * @param executable
+	 *            The repo executable
+	 * @return the number of projects deleted, 0 if repo list failed.
+	 */
+	static int prune(final Launcher launcher, final FilePath workspace,
+			final String executable, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode = launcher.launch().stderr(logger)
+				.stdout(output).pwd(workspace)
+				.cmds(executable, "list", "--all").join();
+		if (returnCode != 0) {
+			debug.log(Level.WARNING, "repo list failed in " + workspace
+					+ " (exit code " + returnCode + "), nothing pruned");
+			return 0;
+		}
+		final Map<String, String> projects =
+				RepoScm.parseList(output.toString());
+		if (projects.isEmpty()) {
+			return 0;
+		}
+		final Set<String> paths = projects.keySet();
+		final Set<String> names = new HashSet<String>(projects.values());
+		final FilePath repo = workspace.child(".repo");
+		int pruned = 0;
+		for (final String path : findGitDirs(launcher, repo, "projects")) {
+			if (paths.contains(path)) {
+				continue;
+			}
+			logger.println("Pruning " + path
+					+ ", which is no longer in the manifest");
+			repo.child("projects").child(path + ".git").deleteRecursive();
+			if (!isParent(path, paths)) {
+				workspace.child(path).deleteRecursive();
+			}
+			pruned++;
+		}
+		for (final String name
+				: findGitDirs(launcher, repo, "project-objects")) {
+			if (!names.contains(name)) {
+				repo.child("project-objects").child(name + ".git")
+						.deleteRecursive();
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Returns the project paths or names of the git directories under a
+	 * directory of .repo, without the .git suffix.
+	 */
+	private static List<String> findGitDirs(final Launcher launcher,
+			final FilePath repo, final String dir)
+			throws IOException, InterruptedException {
+		final List<String> found = new ArrayList<String>();
+		if (!repo.child(dir).isDirectory()) {
+			return found;
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode = launcher.launch().stdout(output)
+				.pwd(repo.child(dir)).cmds("find", ".", "-name", "*.git",
+						"-type", "d", "-prune").join();
+		if (returnCode != 0) {
+			return found;
+		}
+		for (final String line : output.toString().split("\n")) {
+			String path = line.trim();
+			if (!path.startsWith("./") || !path.endsWith(".git")) {
+				continue;
+			}
+			found.add(path.substring(2, path.length() - 4));
+		}
+		return found;
+	}
+
+	private static boolean isParent(final String path,
+			final Set<String> paths) {
+		for (final String other : paths) {
+			if (other.startsWith(path + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the disk usage of a workspace in kilobytes, or 0 if it can't
+	 * be measured.
+	 */
+	private static long getUsage(final Launcher launcher,
+			final FilePath workspace)
+			throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		launcher.launch().stdout(output).pwd(workspace)
+				.cmds("du", "-sk", ".").join();
+		try {
+			return Long.parseLong(output.toString().trim().split("\\s+")[0]);
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Records the duration of a checkout, and reports the effect of the
+	 * maintenance which ran since the previous checkout, if any.
+	 *
+	 * @param workspace
+	 *            The root of the repo client
+	 * @param millis
+	 *            The duration of the checkout
+	 * @param logger
+	 *            The build log
+	 */
+	static void recordCheckout(final FilePath workspace, final long millis,
+			final PrintStream logger)
+			throws IOException, InterruptedException {
+		final FilePath repo = workspace.child(".repo");
+		if (!repo.isDirectory()) {
+			return;
+		}
+		repo.child(CHECKOUT_TIME).write(String.valueOf(millis), null);
+		final FilePath marker = repo.child(MARKER);
+		if (!marker.exists()) {
+			return;
+		}
+		final String[] lines = marker.readToString().split("\n");
+		if (lines.length < 4) {
+			return;
+		}
+		long previous;
+		long reclaimed;
+		try {
+			reclaimed = Long.parseLong(lines[1].trim());
+			previous = Long.parseLong(lines[3].trim());
+		} catch (final NumberFormatException e) {
+			return;
+		}
+		logger.println("Workspace maintenance reclaimed "
+				+ reclaimed / 1024 + " MB and pruned " + lines[2].trim()
+				+ " projects. Checkout took "
+				+ Util.getTimeSpanString(millis)
+				+ (previous > 0 ? ", "
+						+ Util.getTimeSpanString(previous) + " before" : ""));
+		marker.write(lines[0] + "\n" + lines[1] + "\n" + lines[2] + "\n",
+				null);
+	}
+
+	private static long readLong(final FilePath file, final long value)
+			throws IOException, InterruptedException {
+		if (!file.exists()) {
+			return value;
+		}
+		try {
+			return Long.parseLong(file.readToString().split("\n")[0].trim());
+		} catch (final NumberFormatException e) {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Node;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A tarball of the .repo directory of a repo client, used to seed new
+ * workspaces of the same manifest instead of cloning every project over the
+ * network. Snapshots are kept per manifest, either under repo-snapshots in
+ * the root of each node or in a directory shared by all nodes. They are
+ * written in the background by {@link WorkspaceMaintenance}, from the
+ * workspace of a job using them, and rewritten once they are older than
+ * {@link #MAX_AGE}.
+ */
+final class WorkspaceSnapshot {
+
+	/**
+	 * The directory, relative to the root of the node, holding the snapshots
+	 * when no shared directory is configured.
+	 */
+	static final String SNAPSHOTS_DIR = "repo-snapshots";
+
+	/**
+	 * A snapshot older than this is rewritten.
+	 */
+	static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	// The plugin's markers and the local manifest are specific to a
+	// workspace or a job, so the workspaces seeded from a snapshot run
+	// repo init and a full sync as usual.
+	private static final String[] EXCLUDES = {
+		"--exclude=.repo/jenkins-*",
+		"--exclude=.repo/local_manifest.xml",
+	};
+
+	// One lock per snapshot, so that it is never written twice at the same
+	// time.
+	private static final ConcurrentMap<String, Object> LOCKS =
+			new ConcurrentHashMap<String, Object>();
+
+	private WorkspaceSnapshot() {
+	}
+
+	/**
+	 * Returns the snapshot file of a manifest, or null if the node is
+	 * offline.
+	 *
+	 * @param node
+	 *            The node running the build
+	 * @param launcher
+	 *            A launcher for the node
+	 * @param sharedDir
+	 *            The directory shared by all nodes, or null to keep the
+	 *            snapshots on each node
+	 * @param manifest
+	 *            Identifies the manifest: its URL, branch, file and groups
+	 */
+	static FilePath locate(final Node node, final Launcher launcher,
+			final String sharedDir, final String manifest) {
+		final String name = Util.getDigestOf(manifest) + ".tar";
+		if (sharedDir != null) {
+			return new FilePath(launcher.getChannel(), sharedDir).child(name);
+		}
+		final FilePath root = node.getRootPath();
+		return root == null ? null : root.child(SNAPSHOTS_DIR).child(name);
+	}
+
+	/**
+	 * Extracts a snapshot into a workspace which has no .repo yet.
+	 *
+	 * @return true if the workspace was seeded.
+	 */
+	static boolean seed(final FilePath snapshot, final FilePath workspace,
+			final Launcher launcher, final PrintStream logger)
+			throws IOException, InterruptedException {
+		if (workspace.child(".repo").exists() || !snapshot.exists()) {
+			return false;
+		}
+		logger.println("Seeding the workspace from " + snapshot.getRemote());
+		final long start = System.currentTimeMillis();
+		final int returnCode = launcher.launch().stdout(logger).pwd(workspace)
+				.cmds("tar", "-xf", snapshot.getRemote()).join();
+		if (returnCode != 0) {
+			logger.println("Unable to extract the snapshot (exit code "
+					+ returnCode + ")");
+			workspace.child(".repo").deleteRecursive();
+			return false;
+		}
+		logger.println("Seeded the workspace in "
+				+ Util.getTimeSpanString(System.currentTimeMillis() - start));
+		return true;
+	}
+
+	/**
+	 * Returns true if a snapshot is missing or older than {@link #MAX_AGE}.
+	 */
+	static boolean isStale(final FilePath snapshot)
+			throws IOException, InterruptedException {
+		return !snapshot.exists() || System.currentTimeMillis()
+				- snapshot.lastModified() >= MAX_AGE;
+	}
+
+	/**
+	 * Writes a new snapshot of a workspace's .repo if there is none or it is
+	 * older than {@link #MAX_AGE}. The snapshot is written to a temporary
+	 * file first, so workspaces being seeded never see a partial one. The
+	 * workspace must not be synced meanwhile.
+	 *
+	 * @return true if a snapshot was written.
+	 */
+	static boolean refresh(final FilePath snapshot, final FilePath workspace,
+			final Launcher launcher, final PrintStream logger)
+			throws IOException, InterruptedException {
+		if (!isStale(snapshot)) {
+			return false;
+		}
+		synchronized (getLock(snapshot.getRemote())) {
+			if (!isStale(snapshot)) {
+				return false;
+			}
+			logger.println("Writing a snapshot of .repo to "
+					+ snapshot.getRemote());
+			final long start = System.currentTimeMillis();
+			snapshot.getParent().mkdirs();
+			final FilePath temporary =
+					snapshot.getParent().child(snapshot.getName() + ".tmp");
+			final String[] commands = new String[4 + EXCLUDES.length];
+			commands[0] = "tar";
+			commands[1] = "-cf";
+			commands[2] = temporary.getRemote();
+			System.arraycopy(EXCLUDES, 0, commands, 3, EXCLUDES.length);
+			commands[commands.length - 1] = ".repo";
+			final int returnCode = launcher.launch().stdout(logger)
+					.pwd(workspace).cmds(commands).join();
+			if (returnCode != 0) {
+				logger.println("Unable to write the snapshot (exit code "
+						+ returnCode + ")");
+				temporary.delete();
+				return false;
+			}
+			temporary.renameTo(snapshot);
+			logger.println("Wrote the snapshot in "
+					+ Util.getTimeSpanString(System.currentTimeMillis() - start));
+			return true;
+		}
+	}
+
+	private static Object getLock(final String key) {
+		final Object lock = new Object();
+		final Object existing = LOCKS.putIfAbsent(key, lock);
+		return existing != null ? existing : lock;
+	}
+}
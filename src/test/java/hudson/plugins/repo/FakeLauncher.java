@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.Channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A launcher for tests, which answers the commands starting with a given
+ * prefix with a canned exit code and output, and runs the others locally
+ * with the starter's variables. Every command line is recorded. The output,
+ * with the errors, goes to the starter's stdout, or to the process's if it
+ * has none.
+ */
+class FakeLauncher extends Launcher {
+
+	/**
+	 * The command lines launched, with their arguments joined by spaces.
+	 */
+	final List<String> commands =
+			Collections.synchronizedList(new ArrayList<String>());
+
+	private final Map<String, Object[]> replies =
+			new LinkedHashMap<String, Object[]>();
+
+	FakeLauncher() {
+		super(null, null);
+	}
+
+	/**
+	 * Answers the commands starting with a prefix. The first matching
+	 * prefix is used.
+	 */
+	FakeLauncher reply(final String prefix, final int code,
+			final String output) {
+		replies.put(prefix, new Object[] {code, output});
+		return this;
+	}
+
+	@Override
+	public Proc launch(final ProcStarter starter) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		for (final String arg : starter.cmds()) {
+			line.append(line.length() > 0 ? " " : "").append(arg);
+		}
+		final String command = line.toString();
+		commands.add(command);
+		for (final Map.Entry<String, Object[]> reply : replies.entrySet()) {
+			if (command.startsWith(reply.getKey())) {
+				return finish(starter, (Integer) reply.getValue()[0],
+						((String) reply.getValue()[1]).getBytes("UTF-8"));
+			}
+		}
+		final ProcessBuilder builder = new ProcessBuilder(starter.cmds());
+		builder.redirectErrorStream(true);
+		final FilePath pwd = starter.pwd();
+		if (pwd != null) {
+			builder.directory(new File(pwd.getRemote()));
+		}
+		for (final String variable : starter.envs()) {
+			final int separator = variable.indexOf('=');
+			builder.environment().put(variable.substring(0, separator),
+					variable.substring(separator + 1));
+		}
+		final Process process = builder.start();
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final InputStream in = process.getInputStream();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			output.write(buffer, 0, read);
+		}
+		try {
+			return finish(starter, process.waitFor(), output.toByteArray());
+		} catch (final InterruptedException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private static Proc finish(final ProcStarter starter, final int code,
+			final byte[] output) throws IOException {
+		if (starter.stdout() != null) {
+			starter.stdout().write(output);
+			return new FinishedProc(code, new byte[0]);
+		}
+		return new FinishedProc(code, output);
+	}
+
+	@Override
+	public Channel launchChannel(final String[] cmd, final OutputStream out,
+			final FilePath workDir, final Map<String, String> envVars) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void kill(final Map<String, String> modelEnvVars) {
+	}
+
+	/**
+	 * A process which already exited.
+	 */
+	static class FinishedProc extends Proc {
+
+		private final int code;
+		private final byte[] output;
+
+		FinishedProc(final int code, final byte[] output) {
+			this.code = code;
+			this.output = output;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return false;
+		}
+
+		@Override
+		public void kill() {
+		}
+
+		@Override
+		public int join() {
+			return code;
+		}
+
+		@Override
+		public InputStream getStdout() {
+			return new ByteArrayInputStream(output);
+		}
+
+		@Override
+		public InputStream getStderr() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getStdin() {
+			return null;
+		}
+	}
+}
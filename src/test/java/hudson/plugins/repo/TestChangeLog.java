@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ChangeLog} class.
+ */
+public class TestChangeLog extends TestCase {
+
+	private static final String REVISION =
+			"c9039e9649d133d80073e432816b9b4915776b41";
+
+	private File directory;
+	private FilePath project;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("project", "");
+		directory.delete();
+		project = new FilePath(directory);
+		project.child(".git").mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		project.deleteRecursive();
+		super.tearDown();
+	}
+
+	/**
+	 * A full clone missing the previous revision isn't fetched from.
+	 */
+	public void testFullCloneIsNotDeepened() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher()
+				.reply("git cat-file", 1, "")
+				.reply("git rev-parse --git-dir", 0, ".git\n")
+				.reply("git", 0, "");
+		assertFalse(ChangeLog.deepen(launcher, project, REVISION));
+		for (final String command : launcher.commands) {
+			assertFalse(command, command.startsWith("git fetch"));
+		}
+	}
+
+	/**
+	 * A shallow clone is deepened until it has the revision.
+	 */
+	public void testShallowCloneIsDeepened() throws Exception {
+		project.child(".git").child("shallow").touch(0);
+		final FakeLauncher launcher = new FakeLauncher()
+				.reply("git cat-file", 1, "")
+				.reply("git rev-parse --git-dir", 0, ".git\n")
+				.reply("git remote", 0, "origin\n")
+				.reply("git", 0, "");
+		assertFalse(ChangeLog.deepen(launcher, project, REVISION));
+		assertTrue(launcher.commands.toString(), launcher.commands.contains(
+				"git fetch --deepen=50 origin"));
+		assertTrue(launcher.commands.toString(), launcher.commands.contains(
+				"git fetch --unshallow origin"));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link CountingLauncher} class.
+ */
+public class TestCountingLauncher extends TestCase {
+
+	/**
+	 * Every process started is counted, and the processes started in every
+	 * project by a single command are counted once per project.
+	 */
+	public void testCount() throws Exception {
+		final FakeLauncher outer = new FakeLauncher().reply("repo", 0, "");
+		final CountingLauncher launcher = new CountingLauncher(outer, null);
+		launcher.setPhase(Watchdog.Phase.SYNC);
+		launcher.launch().cmds("repo", "sync").join();
+		launcher.launch().cmds("repo", "forall", "-c", "true").join();
+		launcher.addPerProject(3);
+		assertEquals(2, launcher.getLaunched());
+		assertEquals(2 + 3 * 10, launcher.getTotal(10));
+		assertEquals(2, outer.commands.size());
+	}
+
+	/**
+	 * With a watchdog, the processes are started through it, and their
+	 * output and exit code are passed on.
+	 */
+	public void testWatchdog() throws Exception {
+		final Map<Watchdog.Phase, Long> timeouts =
+				new EnumMap<Watchdog.Phase, Long>(Watchdog.Phase.class);
+		timeouts.put(Watchdog.Phase.FORALL, 60000L);
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final FakeLauncher outer = new FakeLauncher()
+				.reply("repo forall", 3, "project a/\n");
+		final CountingLauncher launcher = new CountingLauncher(outer,
+				new Watchdog(timeouts, 0, new PrintStream(log)));
+		launcher.setPhase(Watchdog.Phase.FORALL);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertEquals(3, launcher.launch().stdout(output)
+				.cmds("repo", "forall", "-c", "git pull").join());
+		assertEquals("project a/\n", output.toString());
+		assertEquals(1, launcher.getLaunched());
+		assertEquals("", log.toString());
+	}
+}
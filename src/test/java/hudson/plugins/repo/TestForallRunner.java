@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ForallRunner} class.
+ */
+public class TestForallRunner extends TestCase {
+
+	private static final String MANIFEST = "<manifest>"
+			+ "<remote name=\"origin\" fetch=\"..\"/>"
+			+ "<remote name=\"aosp\" fetch=\"https://example.com\""
+			+ " revision=\"refs/heads/stable\"/>"
+			+ "<default remote=\"origin\" revision=\"master\"/>"
+			+ "<project name=\"platform/build\" path=\"build\"/>"
+			+ "<project name=\"platform/external\" path=\"external\""
+			+ " remote=\"aosp\"/>"
+			+ "<project name=\"tools\" revision=\"v1.0\"/>"
+			+ "</manifest>";
+
+	private File directory;
+	private FilePath workspace;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("forall", "");
+		directory.delete();
+		workspace = new FilePath(directory);
+		for (final String path : new String[] {"build", "external",
+				"tools"}) {
+			workspace.child(path).mkdirs();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		workspace.deleteRecursive();
+		super.tearDown();
+	}
+
+	private Map<String, Map<String, String>> getEnvironments()
+			throws Exception {
+		return ManifestParser.getForallEnvironments(
+				new StringReader(MANIFEST));
+	}
+
+	/**
+	 * The variables of repo forall are read from the manifest.
+	 */
+	public void testEnvironments() throws Exception {
+		final Map<String, Map<String, String>> environments =
+				getEnvironments();
+		assertEquals(Arrays.asList("build", "external", "tools"),
+				Arrays.asList(environments.keySet().toArray()));
+		final Map<String, String> build = environments.get("build");
+		assertEquals("platform/build", build.get("REPO_PROJECT"));
+		assertEquals("build", build.get("REPO_PATH"));
+		assertEquals("origin", build.get("REPO_REMOTE"));
+		assertEquals("master", build.get("REPO_RREV"));
+		assertEquals("aosp", environments.get("external").get("REPO_REMOTE"));
+		assertEquals("refs/heads/stable",
+				environments.get("external").get("REPO_RREV"));
+		assertEquals("v1.0", environments.get("tools").get("REPO_RREV"));
+	}
+
+	/**
+	 * The command sees the variables of its project, and the projects in
+	 * which it fails are returned.
+	 */
+	public void testRun() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher();
+		final ForallRunner runner =
+				new ForallRunner(launcher, workspace, logger, 2);
+		final List<String> failed = runner.run(getEnvironments(),
+				"test \"$REPO_PATH\" = \"$(basename \"$PWD\")\""
+						+ " && test \"$REPO_RREV\" != v1.0");
+		assertEquals(Arrays.asList("tools"), failed);
+		assertEquals(3, launcher.commands.size());
+		assertTrue(log.toString(), log.toString().contains(
+				"project tools/ (exit code 1)"));
+		assertTrue(log.toString(), log.toString().contains(
+				"succeeded in 2 projects, failed in 1"));
+	}
+
+	/**
+	 * The pull runs even if the checkout of the base branch failed, and
+	 * either failure fails the project.
+	 */
+	public void testCheckoutCommand() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher();
+		final ForallRunner runner =
+				new ForallRunner(launcher, workspace, logger, 1);
+		final String command = RepoScm.getCheckoutCommand("master", "pr-1");
+		final Map<String, Map<String, String>> environments =
+				getEnvironments();
+		environments.keySet().retainAll(Arrays.asList("build"));
+		assertEquals(Arrays.asList("build"),
+				runner.run(environments, command));
+		final String output = log.toString();
+		assertTrue(output, output.contains("git checkout master failed"));
+		assertTrue(output, output.contains("git pull failed"));
+		assertFalse(output, output.contains("git checkout pr-1 failed"));
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link IncrementalSync} class.
+ */
+public class TestIncrementalSync extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 40 LINES. REASON: unit test data.
+	private static final String A = "c9039e9649d133d80073e432816b9b4915776b41";
+	private static final String B = "c27d6b02c859b291878db67f256cefac3adb26df";
+	private static final String C = "fa822eff984195ec8923718cd025fd44b77a26ef";
+	private static final String D = "7086d7305fa6c7c1930de1e7d96fffc9c819b479";
+	private static final String TAG = "a9def1a887d12c9a63df1d47a77d4cf4baeb7867";
+	private static final String NEW = "9297f42afa37eaabf1328b44f9f583fc12638c58";
+
+	private static final String MANIFEST = "<manifest>"
+			+ "<project name=\"a\" path=\"a\" revision=\"" + A + "\"/>"
+			+ "<project name=\"b\" path=\"b\" revision=\"" + B + "\"/>"
+			+ "<project name=\"c\" path=\"c\" revision=\"" + C + "\"/>"
+			+ "<project name=\"d\" path=\"d\" revision=\"" + D + "\"/>"
+			+ "</manifest>";
+
+	private File directory;
+	private final PrintStream logger =
+			new PrintStream(new ByteArrayOutputStream());
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("incremental", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new FilePath(directory).deleteRecursive();
+		super.tearDown();
+	}
+
+	private List<String> getChanged(final FakeLauncher launcher)
+			throws Exception {
+		final IncrementalSync sync = new IncrementalSync("repo", launcher,
+				new FilePath(directory), logger);
+		return sync.getChangedProjects(
+				new RevisionState(MANIFEST, "master", null), 0, null);
+	}
+
+	/**
+	 * Projects pinned to a commit are compared without ls-remote.
+	 */
+	public void testPinnedRevisions() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher().reply(
+				"repo forall -c", 0, "a " + A + " " + A + "\n"
+						+ "b " + NEW + " " + B + "\n"
+						+ "c " + C + " " + NEW + "\n");
+		assertEquals(Arrays.asList("b", "c"), getChanged(launcher));
+		assertEquals(1, launcher.commands.size());
+	}
+
+	/**
+	 * Only the projects following a branch or a tag are looked up, in a
+	 * single repo forall, and annotated tags are compared by the commit they
+	 * point to.
+	 */
+	public void testRemoteHeads() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher()
+				.reply("repo forall -c", 0, "a " + A + " " + A + "\n"
+						+ "c master " + C + "\n"
+						+ "d refs/tags/v1 " + D + "\n"
+						+ "e master " + NEW + "\n")
+				.reply("repo forall c d e -c", 0, "c " + C
+						+ " refs/heads/master\n"
+						+ "d " + TAG + " refs/tags/v1\n"
+						+ "d " + D + " refs/tags/v1^{}\n");
+		assertEquals(Arrays.asList("e"), getChanged(launcher));
+		assertEquals(2, launcher.commands.size());
+	}
+
+	/**
+	 * A failed lookup falls back to a full sync.
+	 */
+	public void testFailure() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher()
+				.reply("repo forall -c", 0, "c master " + C + "\n")
+				.reply("repo forall c -c", 1, "");
+		assertNull(getChanged(launcher));
+	}
+
+	/**
+	 * Test {@link IncrementalSync#parseRemoteHeads(String)}.
+	 */
+	public void testParseRemoteHeads() {
+		final Map<String, String> heads = IncrementalSync.parseRemoteHeads(
+				"d " + TAG + " refs/tags/v1\n"
+						+ "d " + D + " refs/tags/v1^{}\n"
+						+ "c\t" + C + "\trefs/heads/master\n"
+						+ "garbage\n");
+		assertEquals(D, heads.get("d"));
+		assertEquals(C, heads.get("c"));
+		assertEquals(2, heads.size());
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ManagedMirror} class.
+ */
+public class TestManagedMirror extends TestCase {
+
+	/**
+	 * Relative fetch URLs are resolved against the manifest URL, and every
+	 * remote is redirected to the mirror once.
+	 */
+	public void testFetchRedirect() throws Exception {
+		final String manifest = "<manifest>"
+				+ "<remote name=\"aosp\" fetch=\"..\"/>"
+				+ "<remote name=\"other\" fetch=\"ssh://git.example.com/\"/>"
+				+ "<remote name=\"copy\" fetch=\"https://host/\"/>"
+				+ "</manifest>";
+		assertEquals(Arrays.asList("GIT_CONFIG_COUNT=2",
+				"GIT_CONFIG_KEY_0=url./m/.insteadOf",
+				"GIT_CONFIG_VALUE_0=https://host/",
+				"GIT_CONFIG_KEY_1=url./m/.insteadOf",
+				"GIT_CONFIG_VALUE_1=ssh://git.example.com/"),
+				Arrays.asList(ManagedMirror.getFetchRedirect(
+						new StringReader(manifest),
+						"https://host/platform/manifest", "/m")));
+	}
+
+	/**
+	 * A manifest without remotes needs no redirect.
+	 */
+	public void testNoRemote() throws Exception {
+		assertNull(ManagedMirror.getFetchRedirect(
+				new StringReader("<manifest/>"),
+				"https://host/manifest", "/m"));
+	}
+
+	/**
+	 * Every repository of the mirror is collected, and a failure in one of
+	 * them is reported.
+	 */
+	public void testGcFailure() throws Exception {
+		final File directory = File.createTempFile("mirror", "");
+		directory.delete();
+		final FilePath mirror = new FilePath(directory);
+		mirror.child(".repo").child("manifests").mkdirs();
+		try {
+			final ByteArrayOutputStream log = new ByteArrayOutputStream();
+			final FakeLauncher launcher = new FakeLauncher()
+					.reply("find", 0, "./a.git\n./b.git\n")
+					.reply("git --git-dir=./b.git", 1, "")
+					.reply("git", 0, "");
+			final ManagedMirror managed =
+					new ManagedMirror("", "https://host/manifest", null, null);
+			assertFalse(managed.gc(mirror, launcher, new PrintStream(log)));
+			assertTrue(launcher.commands.contains(
+					"git --git-dir=./a.git gc --quiet --prune"));
+			assertTrue(log.toString(), log.toString().contains(
+					"git gc failed in ./b.git (exit code 1)"));
+			assertTrue(managed.getLastGc() > 0);
+		} finally {
+			mirror.deleteRecursive();
+		}
+	}
+}
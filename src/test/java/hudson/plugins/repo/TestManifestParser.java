@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ManifestParser} class.
+ */
+public class TestManifestParser extends TestCase {
+
+	private static List<String> parse(final String manifest)
+			throws IOException {
+		final List<String> projects = new ArrayList<String>();
+		for (final ProjectState project
+				: ManifestParser.parse(new StringReader(manifest))) {
+			projects.add(project.getPath() + " " + project.getServerPath()
+					+ " " + project.getRevision());
+		}
+		return projects;
+	}
+
+	/**
+	 * Nested projects are relative to their parent, and annotations and
+	 * other children are skipped.
+	 */
+	public void testNestedProjects() throws IOException {
+		assertEquals("[a/x a 1, a/x/y a/b 2]", parse("<manifest>"
+				+ "<project name=\"a\" path=\"a/x\" revision=\"1\">"
+				+ "<annotation name=\"k\" value=\"v\"/>"
+				+ "<project name=\"b\" path=\"y\" revision=\"2\"/>"
+				+ "</project></manifest>").toString());
+	}
+
+	/**
+	 * remove-project and extend-project change the projects declared
+	 * before them.
+	 */
+	public void testRemoveAndExtend() throws IOException {
+		assertEquals("[b b 3]", parse("<manifest>"
+				+ "<project name=\"a\" revision=\"1\"/>"
+				+ "<project name=\"b\" revision=\"2\"/>"
+				+ "<remove-project name=\"a\"/>"
+				+ "<extend-project name=\"b\" revision=\"3\"/>"
+				+ "</manifest>").toString());
+	}
+
+	/**
+	 * A project may be removed by its path only, and only the project
+	 * matching both is removed when both are given.
+	 */
+	public void testRemoveByPath() throws IOException {
+		assertEquals("[a/y a 1]", parse("<manifest>"
+				+ "<project name=\"a\" path=\"a/x\" revision=\"1\"/>"
+				+ "<project name=\"a\" path=\"a/y\" revision=\"1\"/>"
+				+ "<project name=\"b\" revision=\"2\"/>"
+				+ "<remove-project path=\"b\"/>"
+				+ "<remove-project name=\"a\" path=\"a/x\"/>"
+				+ "</manifest>").toString());
+	}
+
+	/**
+	 * Includes are not read, as "repo manifest" already flattened them.
+	 */
+	public void testIncludesAreSkipped() throws IOException {
+		assertEquals("[a a null]", parse("<manifest>"
+				+ "<project name=\"a\"/>"
+				+ "<include name=\"b\"/>"
+				+ "</manifest>").toString());
+	}
+
+	/**
+	 * Other XML documents are rejected.
+	 */
+	public void testNotAManifest() {
+		try {
+			parse("<project name=\"a\"/>");
+			fail();
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("Not a repo manifest"));
+		}
+	}
+
+	/**
+	 * The jobs of repo sync are read from the default, 0 if it has none.
+	 */
+	public void testSyncJobs() throws IOException {
+		assertEquals(4, ManifestParser.getFetches(new StringReader(
+				"<manifest><default sync-j=\"4\"/></manifest>")).syncJobs);
+		assertEquals(0, ManifestParser.getFetches(new StringReader(
+				"<manifest><default revision=\"main\"/></manifest>"))
+				.syncJobs);
+	}
+
+	/**
+	 * The fetch URLs of the remotes are read in declaration order.
+	 */
+	public void testFetchUrls() throws IOException {
+		assertEquals("[.., ssh://host/]", ManifestParser.getFetchUrls(
+				new StringReader("<manifest>"
+				+ "<remote name=\"aosp\" fetch=\"..\"/>"
+				+ "<remote name=\"local\"/>"
+				+ "<remote name=\"other\" fetch=\"ssh://host/\"/>"
+				+ "<project name=\"a\" remote=\"other\"/>"
+				+ "</manifest>")).toString());
+	}
+}
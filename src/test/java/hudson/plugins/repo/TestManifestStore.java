@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
+import com.thoughtworks.xstream.io.xml.DomDriver;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ManifestStore} class.
+ */
+public class TestManifestStore extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 10 LINES. REASON: unit test data.
+	private static final String MANIFEST = "<manifest>"
+			+ "<project name=\"a\" path=\"a\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+			+ "</manifest>";
+
+	private File directory;
+	private ManifestStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("repo-manifests", "");
+		directory.delete();
+		store = new ManifestStore(directory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * A manifest is stored once and read back by its digest.
+	 */
+	public void testStoreAndLoad() {
+		final String digest = store.store(MANIFEST);
+		assertEquals(ManifestStore.getDigest(MANIFEST), digest);
+		assertEquals(digest, store.store(MANIFEST));
+		assertEquals(1, directory.list().length);
+		assertEquals(MANIFEST, new ManifestStore(directory).load(digest));
+	}
+
+	/**
+	 * A manifest written as a stream gets the same digest as when written
+	 * whole, and its state reads its projects back from the store.
+	 */
+	public void testStoreStream() throws IOException {
+		final String digest = store.store(
+				new ByteArrayInputStream(MANIFEST.getBytes("UTF-8")));
+		assertEquals(ManifestStore.getDigest(MANIFEST), digest);
+		assertEquals(1, directory.list().length);
+		assertEquals(MANIFEST, new ManifestStore(directory).load(digest));
+		final RevisionState state =
+				new RevisionState(store, digest, "master", null, null);
+		assertEquals("c9039e9649d133d80073e432816b9b4915776b41",
+				state.getRevision("a"));
+	}
+
+	/**
+	 * A manifest missing from the store is reported as null, and leaves its
+	 * state without projects instead of failing.
+	 */
+	public void testMissingFile() {
+		final String other = MANIFEST.replace("a\"", "b\"");
+		assertNull(store.load(ManifestStore.getDigest(other)));
+		final XStream xstream =
+				new XStream(new Sun14ReflectionProvider(), new DomDriver());
+		final String digest = store.store(MANIFEST);
+		final RevisionState state = (RevisionState) xstream.fromXML(
+				xstream.toXML(new RevisionState(MANIFEST, "master", null,
+						store, null)).replace(digest,
+						ManifestStore.getDigest(other)));
+		assertNull(state.getManifest());
+		assertEquals(0, state.getProjectCount());
+	}
+
+	/**
+	 * A state without a store, as created outside of a job, keeps its
+	 * manifest.
+	 */
+	public void testInlineFallback() {
+		final RevisionState state =
+				new RevisionState(MANIFEST, "master", null, null, null);
+		assertEquals(MANIFEST, state.getManifest());
+		assertFalse(directory.exists());
+	}
+
+	/**
+	 * Only old manifests no build uses are swept.
+	 */
+	public void testSweep() throws IOException {
+		final String used = store.store(MANIFEST);
+		final String unused = store.store(MANIFEST.replace("a\"", "b\""));
+		final String recent = store.store(MANIFEST.replace("a\"", "c\""));
+		final long old = System.currentTimeMillis() - 2 * 60 * 60 * 1000;
+		for (final String digest : Arrays.asList(used, unused)) {
+			new File(directory, digest + ".xml.gz").setLastModified(old);
+		}
+		assertEquals(1, store.sweep(Collections.singleton(used)));
+		assertTrue(new File(directory, used + ".xml.gz").exists());
+		assertFalse(new File(directory, unused + ".xml.gz").exists());
+		assertTrue(new File(directory, recent + ".xml.gz").exists());
+	}
+}
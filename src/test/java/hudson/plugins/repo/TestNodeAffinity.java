@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link NodeAffinity} class.
+ */
+public class TestNodeAffinity extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 20 LINES. REASON: unit test data.
+	private final RevisionState latest = new RevisionState("<manifest>"
+			+ "<project name=\"a\" path=\"a\" revision=\"9297f42afa37eaabf1328b44f9f583fc12638c58\"/>"
+			+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+			+ "<project name=\"c\" path=\"c\" revision=\"7086d7305fa6c7c1930de1e7d96fffc9c819b479\"/>"
+			+ "</manifest>", "master", null);
+	private final RevisionState older = new RevisionState("<manifest>"
+			+ "<project name=\"a\" path=\"a\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+			+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+			+ "</manifest>", "master", null);
+
+	/**
+	 * A node at the latest state has no delta, and a cold node the largest.
+	 */
+	public void testDelta() {
+		assertEquals(0, NodeAffinity.getDelta(latest, latest));
+		assertEquals(0, NodeAffinity.getDelta(new RevisionState(latest),
+				latest));
+		assertEquals(Integer.MAX_VALUE,
+				NodeAffinity.getDelta(null, latest));
+	}
+
+	/**
+	 * The delta counts the projects changed or added since the node synced.
+	 */
+	public void testChangedProjects() {
+		assertEquals(2, NodeAffinity.getDelta(older, latest));
+		assertTrue(NodeAffinity.getDelta(older, latest)
+				< NodeAffinity.getDelta(null, latest));
+	}
+
+	/**
+	 * A checkout sets the deltas of every node which synced the manifest,
+	 * which are then only looked up.
+	 */
+	public void testUpdateDeltas() {
+		final Map<String, RevisionState> states =
+				new HashMap<String, RevisionState>();
+		states.put("old", older);
+		states.put("lost", null);
+		NodeAffinity.updateDeltas("fresh", "m", latest, states);
+		assertEquals(0, NodeAffinity.getDelta("fresh", "m"));
+		assertEquals(2, NodeAffinity.getDelta("old", "m"));
+		assertEquals(Integer.MAX_VALUE, NodeAffinity.getDelta("lost", "m"));
+		assertEquals(Integer.MAX_VALUE, NodeAffinity.getDelta("cold", "m"));
+		assertEquals(Integer.MAX_VALUE,
+				NodeAffinity.getDelta("fresh", "other"));
+	}
+
+	/**
+	 * The deltas of removed nodes and of manifests no job steers are
+	 * dropped.
+	 */
+	public void testPrune() {
+		NodeAffinity.updateDeltas("kept", "m", latest,
+				Collections.<String, RevisionState>emptyMap());
+		NodeAffinity.updateDeltas("removed", "m", latest,
+				Collections.<String, RevisionState>emptyMap());
+		NodeAffinity.updateDeltas("kept", "unused", latest,
+				Collections.<String, RevisionState>emptyMap());
+		NodeAffinity.prune(Collections.singleton("kept"),
+				Collections.singleton("m"));
+		assertEquals(0, NodeAffinity.getDelta("kept", "m"));
+		assertEquals(Integer.MAX_VALUE,
+				NodeAffinity.getDelta("removed", "m"));
+		assertEquals(Integer.MAX_VALUE,
+				NodeAffinity.getDelta("kept", "unused"));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ProjectFilter} class.
+ */
+public class TestProjectFilter extends TestCase {
+
+	/**
+	 * Patterns match within and across path components, and below
+	 * directories.
+	 */
+	public void testMatches() {
+		final ProjectFilter filter =
+				new ProjectFilter("kernel/*, device/**/hal", "kernel/test");
+		assertTrue(filter.matches("kernel/common"));
+		assertTrue(filter.matches("kernel/common/modules"));
+		assertFalse(filter.matches("kernel/test"));
+		assertTrue(filter.matches("device/foo/bar/hal"));
+		assertFalse(filter.matches("device/foo"));
+		assertFalse(filter.matches("frameworks/base"));
+	}
+
+	/**
+	 * Without include patterns, everything not excluded is selected.
+	 */
+	public void testExcludeOnly() {
+		final ProjectFilter filter = new ProjectFilter(null, "prebuilts/");
+		assertFalse(filter.isEmpty());
+		assertTrue(filter.matches("frameworks/base"));
+		assertFalse(filter.matches("prebuilts/clang"));
+		assertTrue(new ProjectFilter(null, " ").isEmpty());
+	}
+
+	/**
+	 * Projects are selected from a manifest in order, by path or name.
+	 */
+	public void testSelect() throws Exception {
+		final String manifest = "<manifest>"
+				+ "<project name=\"platform/build\" path=\"build\"/>"
+				+ "<project name=\"kernel/common\"/>"
+				+ "<project name=\"platform/foo\" path=\"external/foo\"/>"
+				+ "</manifest>";
+		assertEquals(Arrays.asList("build", "kernel/common"),
+				new ProjectFilter("build kernel", null).select(
+						new StringReader(manifest)));
+	}
+}
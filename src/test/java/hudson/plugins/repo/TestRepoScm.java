@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.model.Descriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RepoScm} class.
+ */
+public class TestRepoScm extends TestCase {
+
+	private static final List<String> INIT =
+			Arrays.asList("repo", "init", "-u", "https://example.com/manifest");
+
+	private File directory;
+	private FilePath workspace;
+	private final PrintStream logger =
+			new PrintStream(new ByteArrayOutputStream());
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("repo", "");
+		directory.delete();
+		workspace = new FilePath(directory);
+		workspace.child(".repo").child("manifests").mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		workspace.deleteRecursive();
+		super.tearDown();
+	}
+
+	/**
+	 * A workspace initialized with the same command only updates its
+	 * manifest.
+	 */
+	public void testInitOnce() throws Exception {
+		FakeLauncher launcher = new FakeLauncher().reply("repo init", 0, "");
+		assertTrue(RepoScm.init(launcher, workspace, logger, INIT));
+		assertEquals(1, launcher.commands.size());
+		assertTrue(workspace.child(".repo").child(RepoScm.INIT_MARKER)
+				.exists());
+
+		launcher = new FakeLauncher().reply("git pull", 0, "")
+				.reply("repo init", 0, "");
+		assertTrue(RepoScm.init(launcher, workspace, logger, INIT));
+		assertEquals(Arrays.asList("git pull --ff-only"), launcher.commands);
+	}
+
+	/**
+	 * repo init runs again if the command changed or the manifest can't be
+	 * updated, and a failed init isn't recorded.
+	 */
+	public void testInitAgain() throws Exception {
+		FakeLauncher launcher = new FakeLauncher().reply("repo init", 0, "");
+		RepoScm.init(launcher, workspace, logger, INIT);
+
+		launcher = new FakeLauncher().reply("git pull", 1, "")
+				.reply("repo init", 0, "");
+		assertTrue(RepoScm.init(launcher, workspace, logger, INIT));
+		assertEquals(2, launcher.commands.size());
+
+		launcher = new FakeLauncher().reply("git pull", 0, "")
+				.reply("repo init", 1, "");
+		assertFalse(RepoScm.init(launcher, workspace, logger,
+				Arrays.asList("repo", "init", "-u",
+						"https://example.com/manifest", "-b", "stable")));
+		assertEquals(1, launcher.commands.size());
+		assertFalse(workspace.child(".repo").child(RepoScm.INIT_MARKER)
+				.exists());
+	}
+
+	/**
+	 * The base checkout, the pull request checkout and the pull are fused
+	 * into one step, and a detached checkout has no step at all.
+	 */
+	public void testPostSyncCommand() {
+		final String command =
+				RepoScm.getPostSyncCommand(null, "feature", false);
+		assertTrue(command, command.contains("git checkout master "));
+		assertTrue(command, command.contains("git checkout feature "));
+		assertTrue(command, command.contains("git pull "));
+		assertFalse(RepoScm.getPostSyncCommand("stable", null, false)
+				.contains("|| true"));
+		assertNull(RepoScm.getPostSyncCommand("stable", "feature", true));
+	}
+
+	/**
+	 * Numeric options are 0 when empty, and anything else which isn't a
+	 * number of 0 or more is rejected rather than turning the option off.
+	 */
+	public void testParseNumber() throws Exception {
+		assertEquals(0, RepoScm.DescriptorImpl.parseNumber(null, "repo.depth"));
+		assertEquals(0, RepoScm.DescriptorImpl.parseNumber(" ", "repo.depth"));
+		assertEquals(50,
+				RepoScm.DescriptorImpl.parseNumber(" 50 ", "repo.depth"));
+		for (final String value : Arrays.asList("fifty", "-1", "1.5")) {
+			try {
+				RepoScm.DescriptorImpl.parseNumber(value, "repo.depth");
+				fail(value);
+			} catch (final Descriptor.FormException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -28,6 +28,10 @@ import java.util.List;
 
 import org.junit.Assert;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
+import com.thoughtworks.xstream.io.xml.DomDriver;
+
 import junit.framework.TestCase;
 
 /**
@@ -106,4 +110,123 @@ public class TestRevisionState extends TestCase {
 		expectedChanges.add(new ProjectState("c", "c", "7086d7305fa6c7c1930de1e7d96fffc9c819b479"));
 		Assert.assertEquals(expectedChanges, changes);
 	}
+
+	/**
+	 * Projects without a revision get the one of their remote, or the
+	 * default one.
+	 */
+	public void testInheritedRevisions() {
+		final RevisionState state = new RevisionState("<manifest>"
+				+ "<remote name=\"r1\" fetch=\"..\" revision=\"stable\"/>"
+				+ "<remote name=\"r2\" fetch=\"..\"/>"
+				+ "<project name=\"a\" remote=\"r1\"/>"
+				+ "<project name=\"b\"/>"
+				+ "<project name=\"c\" revision=\"v1\"/>"
+				+ "<default remote=\"r2\" revision=\"master\"/>"
+				+ "</manifest>", "master", null);
+		Assert.assertEquals("stable", state.getRevision("a"));
+		Assert.assertEquals("master", state.getRevision("b"));
+		Assert.assertEquals("v1", state.getRevision("c"));
+	}
+
+	/**
+	 * States saved in build.xml by older versions, as a map of project
+	 * states, are still read. Like other states, they don't hold on to their
+	 * projects, which are read again from their manifest when needed.
+	 */
+	public void testOldFormat() {
+		final XStream xstream =
+				new XStream(new Sun14ReflectionProvider(), new DomDriver());
+		final RevisionState state = (RevisionState) xstream.fromXML(
+				"<hudson.plugins.repo.RevisionState>"
+				+ "<manifest>&lt;manifest&gt;&lt;project name=\"a\""
+				+ " path=\"a\""
+				+ " revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/&gt;"
+				+ "&lt;/manifest&gt;</manifest>"
+				+ "<projects class=\"tree-map\"><entry><string>a</string>"
+				+ "<hudson.plugins.repo.ProjectState><path>a</path>"
+				+ "<serverPath>a</serverPath>"
+				+ "<revision>c9039e9649d133d80073e432816b9b4915776b41"
+				+ "</revision>"
+				+ "</hudson.plugins.repo.ProjectState></entry></projects>"
+				+ "<branch>master</branch>"
+				+ "</hudson.plugins.repo.RevisionState>");
+		Assert.assertEquals(1, state.getProjectCount());
+		Assert.assertTrue(state.getManifest().startsWith("<manifest>"));
+		Assert.assertEquals(2, state.whatChanged(stateOne).size());
+		Assert.assertEquals("c9039e9649d133d80073e432816b9b4915776b41",
+				state.getRevision("a"));
+		final String xml = xstream.toXML(state);
+		Assert.assertFalse(xml.contains("ProjectState"));
+		final RevisionState copy = (RevisionState) xstream.fromXML(xml);
+		Assert.assertEquals(state, copy);
+		Assert.assertEquals("c9039e9649d133d80073e432816b9b4915776b41",
+				copy.getRevision("a"));
+	}
+
+	/**
+	 * The projects of a state read from a build.xml are read again from its
+	 * manifest, with its filter, when first needed.
+	 */
+	public void testLazyProjects() {
+		final XStream xstream =
+				new XStream(new Sun14ReflectionProvider(), new DomDriver());
+		final RevisionState filtered = new RevisionState(manifestTwo,
+				"master", new ProjectFilter("a c", "c"), null);
+		final String xml = xstream.toXML(filtered);
+		Assert.assertFalse(xml.contains("savedProjects"));
+		final RevisionState copy = (RevisionState) xstream.fromXML(xml);
+		Assert.assertEquals(1, copy.getProjectCount());
+		Assert.assertEquals("9297f42afa37eaabf1328b44f9f583fc12638c58",
+				copy.getRevision("a"));
+		Assert.assertEquals(filtered, copy);
+	}
+
+	/**
+	 * States are compared by the digest of their projects, which ignores
+	 * how the manifest is written.
+	 */
+	public void testProjectsDigest() {
+		final RevisionState reformatted = new RevisionState(
+				manifestOne.replace("/>", " />").replace("<manifest>",
+						"<manifest>\n<!-- comment -->\n"), "master", null);
+		Assert.assertEquals(stateOne.getProjectsDigest(),
+				reformatted.getProjectsDigest());
+		Assert.assertEquals(stateOne, reformatted);
+		Assert.assertEquals(stateOne.hashCode(), reformatted.hashCode());
+		Assert.assertFalse(stateOne.getProjectsDigest().equals(
+				stateTwo.getProjectsDigest()));
+	}
+
+	/**
+	 * The heads read after a checkout which changed nothing match the
+	 * previous state, which is then copied for the new build.
+	 */
+	public void testUnchangedHeads() {
+		final String heads = "a c9039e9649d133d80073e432816b9b4915776b41\n"
+				+ "c fa822eff984195ec8923718cd025fd44b77a26ef\n"
+				+ "b c27d6b02c859b291878db67f256cefac3adb26df\n";
+		Assert.assertTrue(stateOne.isAt(heads));
+		final RevisionState copy = new RevisionState(stateOne);
+		Assert.assertNotSame(stateOne, copy);
+		Assert.assertEquals(stateOne, copy);
+		Assert.assertEquals(stateOne.getManifest(), copy.getManifest());
+		Assert.assertEquals(0, copy.whatChanged(stateOne).size());
+	}
+
+	/**
+	 * A moved head, a missing project or an extra project means the tree
+	 * changed.
+	 */
+	public void testChangedHeads() {
+		final String a = "a c9039e9649d133d80073e432816b9b4915776b41\n";
+		final String b = "b c27d6b02c859b291878db67f256cefac3adb26df\n";
+		final String c = "c fa822eff984195ec8923718cd025fd44b77a26ef\n";
+		Assert.assertFalse(stateOne.isAt(a + b
+				+ "c 7086d7305fa6c7c1930de1e7d96fffc9c819b479\n"));
+		Assert.assertFalse(stateOne.isAt(a + b));
+		Assert.assertFalse(stateOne.isAt(a + b + c
+				+ "d a9def1a887d12c9a63df1d47a77d4cf4baeb7867\n"));
+		Assert.assertFalse(stateOne.isAt(""));
+	}
 }
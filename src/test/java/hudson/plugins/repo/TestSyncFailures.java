@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SyncFailures} class.
+ */
+public class TestSyncFailures extends TestCase {
+
+	/**
+	 * Projects reported with "error: Cannot ...".
+	 */
+	public void testCannotLines() {
+		final String output = "Fetching projects: 100% (3/3), done.\n"
+				+ "error: Cannot fetch platform/build from https://h/build\n"
+				+ "error: Cannot checkout platform/frameworks/base\n"
+				+ "error: Cannot fetch platform/build\n";
+		assertEquals(Arrays.asList("platform/build",
+				"platform/frameworks/base"), SyncFailures.parse(output));
+	}
+
+	/**
+	 * Projects listed after "Failing repos:".
+	 */
+	public void testFailingRepos() {
+		final String output = "error: Unable to fully sync the tree.\n"
+				+ "Failing repos:\n"
+				+ "build/make/\n"
+				+ "frameworks/base\n"
+				+ "\n"
+				+ "Try re-running with \"-j1 --fail-fast\" to exit at the first"
+				+ " error.\n";
+		assertEquals(Arrays.asList("build/make", "frameworks/base"),
+				SyncFailures.parse(output));
+	}
+
+	/**
+	 * Output without identifiable projects.
+	 */
+	public void testUnknown() {
+		assertTrue(SyncFailures.parse("fatal: unable to connect\n")
+				.isEmpty());
+	}
+}
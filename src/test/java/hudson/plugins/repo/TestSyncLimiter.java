@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SyncLimiter} class.
+ */
+public class TestSyncLimiter extends TestCase {
+
+	/**
+	 * Hosts are found in URLs and scp-like addresses, not in local paths.
+	 */
+	public void testGetHost() {
+		assertEquals("android.googlesource.com", SyncLimiter.getHost(
+				"https://android.googlesource.com/platform/manifest"));
+		assertEquals("review.example.com", SyncLimiter.getHost(
+				"ssh://jenkins@review.example.com:29418/manifest"));
+		assertEquals("github.com",
+				SyncLimiter.getHost("git@github.com:example/manifest.git"));
+		assertNull(SyncLimiter.getHost("/srv/git/manifest.git"));
+		assertNull(SyncLimiter.getHost(null));
+	}
+
+	/**
+	 * A node slot is held until the permit is released.
+	 */
+	public void testNodeLimit() throws Exception {
+		final PrintStream logger =
+				new PrintStream(new ByteArrayOutputStream());
+		final SyncLimiter.Permit first = SyncLimiter.acquire("limited", 1,
+				Arrays.asList("https://example.com/manifest"), 0, 4, logger);
+		final Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SyncLimiter.acquire("limited", 1,
+							Collections.<String>emptyList(), 0, 1, logger)
+							.release();
+				} catch (final InterruptedException e) {
+					return;
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+		first.release();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+	}
+
+	/**
+	 * Connections are taken from the server of every remote, so a sync
+	 * waits for a server which only its remotes use.
+	 */
+	public void testHostLimitPerRemote() throws Exception {
+		final PrintStream logger =
+				new PrintStream(new ByteArrayOutputStream());
+		final SyncLimiter.Permit first = SyncLimiter.acquire("a", 0,
+				Arrays.asList("https://manifest.example.com/manifest",
+						"ssh://git.example.org/"), 2, 4, logger);
+		final Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SyncLimiter.acquire("b", 0,
+							Arrays.asList("https://other.example.com/m",
+									"git@git.example.org:x"), 2, 1, logger)
+							.release();
+				} catch (final InterruptedException e) {
+					return;
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+		first.release();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+	}
+
+	/**
+	 * A sync which sets no number of jobs counts as repo's default, not as
+	 * a single connection.
+	 */
+	public void testDefaultJobs() throws Exception {
+		final PrintStream logger =
+				new PrintStream(new ByteArrayOutputStream());
+		final SyncLimiter.Permit first = SyncLimiter.acquire("a", 0,
+				Arrays.asList("https://defaults.example.com/manifest"),
+				SyncLimiter.DEFAULT_JOBS, 0, logger);
+		final Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SyncLimiter.acquire("b", 0, Arrays.asList(
+							"https://defaults.example.com/manifest"),
+							SyncLimiter.DEFAULT_JOBS, 1, logger).release();
+				} catch (final InterruptedException e) {
+					return;
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+		first.release();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+	}
+}
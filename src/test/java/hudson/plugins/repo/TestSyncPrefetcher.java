@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SyncPrefetcher} class.
+ */
+public class TestSyncPrefetcher extends TestCase {
+
+	private File directory;
+	private FilePath workspace;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("prefetch", "");
+		directory.delete();
+		workspace = new FilePath(directory);
+		workspace.child(".repo").child("manifests").mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		workspace.deleteRecursive();
+		super.tearDown();
+	}
+
+	/**
+	 * A prefetch is used once, with the manifest it fetched for.
+	 */
+	public void testMark() throws Exception {
+		SyncPrefetcher.mark(workspace, "abc 123");
+		assertEquals("abc 123", SyncPrefetcher.takeMark(workspace));
+		assertNull(SyncPrefetcher.takeMark(workspace));
+	}
+
+	/**
+	 * Old prefetches, and records without a manifest, are dropped.
+	 */
+	public void testStaleMark() throws Exception {
+		final FilePath marker =
+				workspace.child(".repo").child(SyncPrefetcher.MARKER);
+		marker.write(String.valueOf(System.currentTimeMillis()), null);
+		assertNull(SyncPrefetcher.takeMark(workspace));
+		assertFalse(marker.exists());
+
+		marker.write((System.currentTimeMillis() - SyncPrefetcher.MAX_AGE)
+				+ "\nabc 123\n", null);
+		assertNull(SyncPrefetcher.takeMark(workspace));
+		assertFalse(marker.exists());
+	}
+
+	/**
+	 * The manifest changes with the manifest revision and with the local
+	 * manifest.
+	 */
+	public void testManifest() throws Exception {
+		final String first = SyncPrefetcher.getManifest(
+				new FakeLauncher().reply("git rev-parse", 0, "abc\n"),
+				workspace);
+		assertTrue(first, first.startsWith("abc "));
+		assertEquals(first, SyncPrefetcher.getManifest(
+				new FakeLauncher().reply("git rev-parse", 0, "abc\n"),
+				workspace));
+		assertFalse(first.equals(SyncPrefetcher.getManifest(
+				new FakeLauncher().reply("git rev-parse", 0, "def\n"),
+				workspace)));
+
+		workspace.child(".repo").child("local_manifest.xml")
+				.write("<manifest/>", null);
+		assertFalse(first.equals(SyncPrefetcher.getManifest(
+				new FakeLauncher().reply("git rev-parse", 0, "abc\n"),
+				workspace)));
+		assertNull(SyncPrefetcher.getManifest(
+				new FakeLauncher().reply("git rev-parse", 128, ""),
+				workspace));
+	}
+}
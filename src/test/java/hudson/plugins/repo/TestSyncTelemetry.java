@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SyncTelemetry} class.
+ */
+public class TestSyncTelemetry extends TestCase {
+
+	/**
+	 * Without samples, one job per core is used, up to the ceiling.
+	 */
+	public void testNoSamples() {
+		final SyncTelemetry telemetry = new SyncTelemetry("");
+		assertEquals(4, telemetry.pickJobs(4, 100));
+		assertEquals(2, telemetry.pickJobs(4, 2));
+		assertEquals(1, telemetry.pickJobs(0, 100));
+	}
+
+	/**
+	 * A higher setting is tried once, and the best one is kept.
+	 */
+	public void testBestThroughput() {
+		final SyncTelemetry telemetry = new SyncTelemetry("");
+		telemetry.record(4, 10000, 100);
+		assertEquals(6, telemetry.pickJobs(4, 100));
+		telemetry.record(6, 10000, 50);
+		assertEquals(4, telemetry.pickJobs(4, 100));
+		telemetry.record(6, 10000, 200);
+		telemetry.record(6, 10000, 200);
+		assertEquals(9, telemetry.pickJobs(4, 100));
+	}
+
+	/**
+	 * The setting is halved when the last sync was much slower than usual.
+	 */
+	public void testSlowdown() {
+		final SyncTelemetry telemetry = new SyncTelemetry("");
+		telemetry.record(6, 10000, 100);
+		telemetry.record(4, 10000, 100);
+		telemetry.record(4, 10000, 100);
+		telemetry.record(4, 100000, 100);
+		assertEquals(2, telemetry.pickJobs(4, 100));
+	}
+
+	/**
+	 * The ceiling and the number of cores bound the setting.
+	 */
+	public void testCeiling() {
+		final SyncTelemetry telemetry = new SyncTelemetry("");
+		telemetry.record(8, 10000, 100);
+		assertEquals(3, telemetry.pickJobs(2, 3));
+		assertEquals(8, telemetry.pickJobs(2, 100));
+	}
+
+	/**
+	 * Only the last {@link SyncTelemetry#HISTORY} samples are kept.
+	 */
+	public void testHistory() {
+		final SyncTelemetry telemetry = new SyncTelemetry("");
+		for (int i = 0; i < SyncTelemetry.HISTORY + 5; i++) {
+			telemetry.record(i + 1, 1000, 10);
+		}
+		assertEquals(SyncTelemetry.HISTORY, telemetry.getSamples().size());
+		assertEquals(6, telemetry.getSamples().get(0).getJobs());
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.Channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link Watchdog} class.
+ */
+public class TestWatchdog extends TestCase {
+
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log);
+
+	private Watchdog watchdog(final Watchdog.Phase phase,
+			final long timeout, final long idleTimeout) {
+		final Map<Watchdog.Phase, Long> timeouts =
+				new EnumMap<Watchdog.Phase, Long>(Watchdog.Phase.class);
+		timeouts.put(phase, timeout);
+		final Watchdog watchdog = new Watchdog(timeouts, idleTimeout, 20,
+				logger);
+		watchdog.setPhase(phase);
+		return watchdog;
+	}
+
+	/**
+	 * A command running past the timeout of its phase is killed, even if
+	 * it keeps printing, and the log names it.
+	 */
+	public void testPhaseTimeout() throws Exception {
+		final HangingLauncher launcher = new HangingLauncher(20, 5000);
+		final Watchdog watchdog = watchdog(Watchdog.Phase.SYNC, 200, 100);
+		final Proc proc = watchdog.launch(launcher, launcher.launch()
+				.cmds("repo", "sync").stdout(new ByteArrayOutputStream()));
+		assertEquals(HangingLauncher.KILLED, proc.join());
+		final String output = log.toString();
+		assertTrue(output, output.contains("Killed \"repo sync\""));
+		assertTrue(output, output.contains("sync timeout"));
+		assertTrue(output, output.contains("last output was: working"));
+	}
+
+	/**
+	 * A command which stops printing is killed once it was idle for the
+	 * idle timeout.
+	 */
+	public void testIdleTimeout() throws Exception {
+		final HangingLauncher launcher = new HangingLauncher(0, 5000);
+		final Watchdog watchdog = watchdog(Watchdog.Phase.FORALL, 0, 100);
+		final Proc proc = watchdog.launch(launcher, launcher.launch()
+				.cmds("repo", "forall", "-c", "git checkout base")
+				.stdout(new ByteArrayOutputStream()));
+		assertEquals(HangingLauncher.KILLED, proc.join());
+		assertTrue(log.toString(), log.toString().contains("no output"));
+	}
+
+	/**
+	 * Output read from the process by the caller counts as output.
+	 */
+	public void testIdleWithReadOutput() throws Exception {
+		final HangingLauncher launcher = new HangingLauncher(20, 400);
+		final Watchdog watchdog = watchdog(Watchdog.Phase.MANIFEST, 0, 100);
+		final Proc proc = watchdog.launch(launcher, launcher.launch()
+				.cmds("repo", "manifest", "-o", "-"));
+		final InputStream in = proc.getStdout();
+		while (in.read() >= 0) {
+			continue;
+		}
+		assertEquals(0, proc.join());
+		assertEquals("", log.toString());
+	}
+
+	/**
+	 * Quiet commands are only limited by their phase, network fetches are
+	 * watched as any other.
+	 */
+	public void testQuietCommands() throws Exception {
+		assertTrue(Watchdog.isQuiet(Arrays.asList("repo", "forall", "-c",
+				"git gc --quiet")));
+		assertTrue(Watchdog.isQuiet(Arrays.asList("repo", "sync", "-q")));
+		assertFalse(Watchdog.isQuiet(Arrays.asList("repo", "sync", "-j4")));
+		assertFalse(Watchdog.isQuiet(Arrays.asList("git", "fetch", "origin")));
+		assertFalse(Watchdog.isQuiet(Arrays.asList("repo", "forall", "-c",
+				"git checkout base")));
+
+		final HangingLauncher launcher = new HangingLauncher(0, 300);
+		final Watchdog watchdog = watchdog(Watchdog.Phase.SYNC, 0, 50);
+		final Proc proc = watchdog.launch(launcher, launcher.launch()
+				.cmds("repo", "forall", "-c", "git gc --quiet")
+				.stdout(new ByteArrayOutputStream()));
+		assertEquals(0, proc.join());
+		assertEquals("", log.toString());
+	}
+
+	/**
+	 * A launcher whose processes print a line at an interval, or never if
+	 * it is 0, and exit after a time unless they are killed first.
+	 */
+	private static final class HangingLauncher extends Launcher {
+
+		static final int KILLED = 143;
+
+		private final long interval;
+		private final long duration;
+
+		HangingLauncher(final long interval, final long duration) {
+			super(null, null);
+			this.interval = interval;
+			this.duration = duration;
+		}
+
+		@Override
+		public Proc launch(final ProcStarter starter) throws IOException {
+			return new HangingProc(starter.stdout(), interval, duration);
+		}
+
+		@Override
+		public Channel launchChannel(final String[] cmd,
+				final OutputStream out, final FilePath workDir,
+				final Map<String, String> envVars) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void kill(final Map<String, String> modelEnvVars) {
+		}
+	}
+
+	/**
+	 * A process printing through a pipe or to its output stream.
+	 */
+	private static final class HangingProc extends Proc {
+
+		private final CountDownLatch killed = new CountDownLatch(1);
+		private final OutputStream out;
+		private final long interval;
+		private final long duration;
+		private final long started = System.currentTimeMillis();
+		private long printed;
+
+		HangingProc(final OutputStream out, final long interval,
+				final long duration) {
+			this.out = out;
+			this.interval = interval;
+			this.duration = duration;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return killed.getCount() > 0;
+		}
+
+		@Override
+		public void kill() {
+			killed.countDown();
+		}
+
+		@Override
+		public int join() throws IOException, InterruptedException {
+			while (System.currentTimeMillis() - started < duration) {
+				if (killed.await(interval > 0 ? interval : duration,
+						TimeUnit.MILLISECONDS)) {
+					return HangingLauncher.KILLED;
+				}
+				if (interval > 0 && out != null) {
+					out.write("working\n".getBytes("UTF-8"));
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public InputStream getStdout() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					try {
+						if (System.currentTimeMillis() - started >= duration
+								|| killed.await(interval,
+										TimeUnit.MILLISECONDS)) {
+							return -1;
+						}
+					} catch (final InterruptedException e) {
+						throw new IOException(e.toString());
+					}
+					return printed++ % 2 == 0 ? 'x' : '\n';
+				}
+			};
+		}
+
+		@Override
+		public InputStream getStderr() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getStdin() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link WorkspaceLock} class.
+ */
+public class TestWorkspaceLock extends TestCase {
+
+	/**
+	 * A workspace has one lock, whatever the caller.
+	 */
+	public void testGet() {
+		assertSame(WorkspaceLock.get("master:/ws/a"),
+				WorkspaceLock.get("master:/ws/a"));
+		assertNotSame(WorkspaceLock.get("master:/ws/a"),
+				WorkspaceLock.get("slave:/ws/a"));
+	}
+
+	/**
+	 * A free lock is taken without a word in the build log.
+	 */
+	public void testFree() throws Exception {
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final ReentrantLock lock = WorkspaceLock.get("master:/ws/free");
+		WorkspaceLock.lock(lock, "/ws/free", 10, new PrintStream(log, true));
+		assertTrue(lock.isHeldByCurrentThread());
+		lock.unlock();
+		assertEquals("", log.toString());
+	}
+
+	/**
+	 * A checkout waiting for a busy workspace logs why, and gets the lock
+	 * once the background work releases it.
+	 */
+	public void testWaitIsLogged() throws Exception {
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final ReentrantLock lock = WorkspaceLock.get("master:/ws/busy");
+		final AtomicBoolean locked = new AtomicBoolean();
+		lock.lock();
+		final Thread checkout = new Thread() {
+			public void run() {
+				try {
+					WorkspaceLock.lock(lock, "/ws/busy", 10,
+							new PrintStream(log, true));
+					locked.set(true);
+					lock.unlock();
+				} catch (InterruptedException e) {
+					// the test fails on the flag
+				}
+			}
+		};
+		checkout.start();
+		Thread.sleep(100);
+		assertFalse(locked.get());
+		lock.unlock();
+		checkout.join(5000);
+		assertTrue(locked.get());
+		assertTrue(log.toString(), log.toString().startsWith(
+				"Waiting for the maintenance or prefetch of workspace "
+				+ "/ws/busy"));
+		assertTrue(log.toString(),
+				log.toString().contains("Still waiting for workspace"));
+	}
+
+	/**
+	 * Aborting a build stops its wait for a busy workspace.
+	 */
+	public void testWaitIsInterruptible() throws Exception {
+		final ReentrantLock lock = WorkspaceLock.get("master:/ws/stuck");
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		lock.lock();
+		try {
+			final Thread checkout = new Thread() {
+				public void run() {
+					try {
+						WorkspaceLock.lock(lock, "/ws/stuck", 10,
+								new PrintStream(new ByteArrayOutputStream()));
+						lock.unlock();
+					} catch (InterruptedException e) {
+						interrupted.set(true);
+					}
+				}
+			};
+			checkout.start();
+			Thread.sleep(50);
+			checkout.interrupt();
+			checkout.join(5000);
+			assertTrue(interrupted.get());
+		} finally {
+			lock.unlock();
+		}
+	}
+}
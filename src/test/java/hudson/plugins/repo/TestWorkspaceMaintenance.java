@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link WorkspaceMaintenance} class.
+ */
+public class TestWorkspaceMaintenance extends TestCase {
+
+	private File workspace;
+	private final PrintStream logger = new PrintStream(System.out);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		workspace = File.createTempFile("workspace", "");
+		workspace.delete();
+		for (final String project : new String[] {"a", "b", "old"}) {
+			new File(workspace, ".repo/projects/" + project + ".git").mkdirs();
+			new File(workspace, ".repo/project-objects/" + project + ".git")
+					.mkdirs();
+			new File(workspace, project).mkdirs();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new FilePath(workspace).deleteRecursive();
+		super.tearDown();
+	}
+
+	/**
+	 * Only the projects which are no longer in the manifest are pruned,
+	 * whichever projects the last build synced.
+	 */
+	public void testPrune() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher()
+				.reply("repo list", 0, "a : a\nb : b\n");
+		assertEquals(1, WorkspaceMaintenance.prune(launcher,
+				new FilePath(workspace), "repo", logger));
+		assertTrue(launcher.commands.contains("repo list --all"));
+		assertTrue(new File(workspace, ".repo/projects/a.git").exists());
+		assertTrue(new File(workspace, ".repo/projects/b.git").exists());
+		assertTrue(new File(workspace, "b").exists());
+		assertFalse(new File(workspace, ".repo/projects/old.git").exists());
+		assertFalse(new File(workspace, ".repo/project-objects/old.git")
+				.exists());
+		assertFalse(new File(workspace, "old").exists());
+	}
+
+	/**
+	 * Nothing is pruned when the manifest can't be listed.
+	 */
+	public void testPruneWithoutList() throws Exception {
+		final FakeLauncher launcher =
+				new FakeLauncher().reply("repo list", 1, "");
+		assertEquals(0, WorkspaceMaintenance.prune(launcher,
+				new FilePath(workspace), "repo", logger));
+		assertTrue(new File(workspace, ".repo/projects/old.git").exists());
+		assertTrue(new File(workspace, "old").exists());
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link WorkspaceSnapshot} class.
+ */
+public class TestWorkspaceSnapshot extends TestCase {
+
+	private File directory;
+	private FilePath snapshot;
+	private FilePath workspace;
+	private final PrintStream logger =
+			new PrintStream(new ByteArrayOutputStream());
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("snapshots", "");
+		directory.delete();
+		snapshot = new FilePath(directory).child("snapshots")
+				.child("manifest.tar");
+		workspace = new FilePath(directory).child("workspace");
+		workspace.child(".repo").child("manifests").child("default.xml")
+				.write("<manifest/>", null);
+		workspace.child(".repo").child(WorkspaceMaintenance.MARKER)
+				.write("0", null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new FilePath(directory).deleteRecursive();
+		super.tearDown();
+	}
+
+	/**
+	 * A missing snapshot is written, without the plugin's markers, and a
+	 * recent one is left alone.
+	 */
+	public void testRefresh() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher();
+		assertTrue(WorkspaceSnapshot.isStale(snapshot));
+		assertTrue(WorkspaceSnapshot.refresh(snapshot, workspace, launcher,
+				logger));
+		assertTrue(snapshot.exists());
+		assertFalse(snapshot.getParent().child("manifest.tar.tmp").exists());
+		assertFalse(WorkspaceSnapshot.isStale(snapshot));
+		assertFalse(WorkspaceSnapshot.refresh(snapshot, workspace, launcher,
+				logger));
+		assertEquals(1, launcher.commands.size());
+
+		snapshot.touch(System.currentTimeMillis()
+				- WorkspaceSnapshot.MAX_AGE - 1000);
+		assertTrue(WorkspaceSnapshot.isStale(snapshot));
+	}
+
+	/**
+	 * A new workspace is seeded from the snapshot, an initialized one is
+	 * not.
+	 */
+	public void testSeed() throws Exception {
+		final FakeLauncher launcher = new FakeLauncher();
+		WorkspaceSnapshot.refresh(snapshot, workspace, launcher, logger);
+		final FilePath seeded = new FilePath(directory).child("seeded");
+		seeded.mkdirs();
+		assertTrue(WorkspaceSnapshot.seed(snapshot, seeded, launcher,
+				logger));
+		assertEquals("<manifest/>", seeded.child(".repo").child("manifests")
+				.child("default.xml").readToString());
+		assertFalse(seeded.child(".repo")
+				.child(WorkspaceMaintenance.MARKER).exists());
+		assertFalse(WorkspaceSnapshot.seed(snapshot, workspace, launcher,
+				logger));
+	}
+}